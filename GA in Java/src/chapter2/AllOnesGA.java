@@ -63,6 +63,8 @@ public class AllOnesGA {
 		 * ones, as promised.
 		 */
 		System.out.println("Found solution in " + generation + " generations");
+		System.out.println("Evaluations: " + ga.getTotalEvaluatedCount() + " (" + ga.getTotalSkippedCount()
+				+ " skipped)");
 		System.out.println("Best solution: " + population.getFittest(0).toString());
 	}
 }
@@ -49,11 +49,104 @@ public class GeneticAlgorithm {
 	 */
 	private int elitismCount;
 
-	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount) {
+	/**
+	 * Whether to select all of a generation's parents in one go using
+	 * stochastic universal sampling, rather than spinning the roulette wheel
+	 * once per parent. See the RouletteWheel class.
+	 */
+	private boolean stochasticUniversalSampling = false;
+
+	/**
+	 * Source of all random numbers used by the algorithm
+	 */
+	private RandomSource random;
+
+	/**
+	 * Scratch buffer for random numbers drawn in blocks
+	 */
+	private double randomBlock[] = new double[0];
+
+	/**
+	 * Whether mutation should draw the distance to the next mutated gene from
+	 * a geometric distribution, rather than testing every gene in turn. Both
+	 * modes mutate genes with the same probabilities, but at low mutation
+	 * rates the geometric mode needs far fewer random numbers.
+	 */
+	private boolean geometricMutation = false;
+
+	/**
+	 * How many individuals the last call to evalPopulation evaluated, and how
+	 * many it skipped because their fitness was still current, along with the
+	 * running totals across all calls
+	 */
+	private int lastEvaluatedCount = 0;
+	private int lastSkippedCount = 0;
+	private long totalEvaluatedCount = 0;
+	private long totalSkippedCount = 0;
+
+	/**
+	 * Create a genetic algorithm that draws its random numbers from the given
+	 * source, so that runs can be reproduced from the source's seed.
+	 */
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount, RandomSource random) {
 		this.populationSize = populationSize;
 		this.mutationRate = mutationRate;
 		this.crossoverRate = crossoverRate;
 		this.elitismCount = elitismCount;
+		this.random = random;
+	}
+
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, new RandomSource());
+	}
+
+	/**
+	 * Choose between one roulette wheel spin per parent (the default) and
+	 * stochastic universal sampling
+	 * 
+	 * @param stochasticUniversalSampling
+	 *            True to select all parents in a single pass
+	 */
+	public void setStochasticUniversalSampling(boolean stochasticUniversalSampling) {
+		this.stochasticUniversalSampling = stochasticUniversalSampling;
+	}
+
+	/**
+	 * Switch between per-gene and geometric skip-sampling mutation
+	 * 
+	 * @param geometricMutation
+	 *            True to jump directly between mutated genes
+	 */
+	public void setGeometricMutation(boolean geometricMutation) {
+		this.geometricMutation = geometricMutation;
+	}
+
+	/**
+	 * @return The number of individuals evaluated by the last evalPopulation
+	 */
+	public int getLastEvaluatedCount() {
+		return this.lastEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped by the last evalPopulation
+	 */
+	public int getLastSkippedCount() {
+		return this.lastSkippedCount;
+	}
+
+	/**
+	 * @return The number of individuals evaluated across all generations
+	 */
+	public long getTotalEvaluatedCount() {
+		return this.totalEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped across all generations
+	 */
+	public long getTotalSkippedCount() {
+		return this.totalSkippedCount;
 	}
 
 	/**
@@ -65,7 +158,7 @@ public class GeneticAlgorithm {
 	 */
 	public Population initPopulation(int chromosomeLength) {
 		// Initialize population
-		Population population = new Population(this.populationSize, chromosomeLength);
+		Population population = new Population(this.populationSize, chromosomeLength, this.random);
 		return population;
 	}
 
@@ -85,16 +178,8 @@ public class GeneticAlgorithm {
 	 */
 	public double calcFitness(Individual individual) {
 
-		// Track number of correct genes
-		int correctGenes = 0;
-
-		// Loop over individual's genes
-		for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-			// Add one fitness point for each "1" found
-			if (individual.getGene(geneIndex) == 1) {
-				correctGenes += 1;
-			}
-		}
+		// Count the "1"s, 64 genes at a time
+		int correctGenes = individual.countOnes();
 
 		// Calculate fitness
 		double fitness = (double) correctGenes / individual.getChromosomeLength();
@@ -113,18 +198,36 @@ public class GeneticAlgorithm {
 	 * population's fitness may or may not be important, but what is important
 	 * here is making sure that each individual gets evaluated.
 	 * 
+	 * Individuals whose chromosome hasn't changed since their fitness was
+	 * calculated (elites, and parents that were carried over without crossover
+	 * or mutation) keep that fitness; only stale individuals are evaluated.
+	 * 
 	 * @param population
 	 *            the population to evaluate
 	 */
 	public void evalPopulation(Population population) {
 		double populationFitness = 0;
+		int evaluated = 0;
+		int skipped = 0;
 
 		// Loop over population evaluating individuals and suming population
 		// fitness
 		for (Individual individual : population.getIndividuals()) {
-			populationFitness += calcFitness(individual);
+			// Only individuals whose chromosome has changed need evaluating
+			if (individual.isFitnessStale()) {
+				populationFitness += calcFitness(individual);
+				evaluated++;
+			} else {
+				populationFitness += individual.getFitness();
+				skipped++;
+			}
 		}
 
+		this.lastEvaluatedCount = evaluated;
+		this.lastSkippedCount = skipped;
+		this.totalEvaluatedCount += evaluated;
+		this.totalSkippedCount += skipped;
+
 		population.setPopulationFitness(populationFitness);
 	}
 
@@ -150,27 +253,17 @@ public class GeneticAlgorithm {
 	/**
 	 * Select parent for crossover
 	 * 
+	 * This uses roulette wheel selection. The population builds its wheel once
+	 * per generation, so each spin is a binary search rather than a walk over
+	 * the whole population.
+	 * 
 	 * @param population
 	 *            The population to select parent from
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Get individuals
-		Individual individuals[] = population.getIndividuals();
-
 		// Spin roulette wheel
-		double populationFitness = population.getPopulationFitness();
-		double rouletteWheelPosition = Math.random() * populationFitness;
-
-		// Find parent
-		double spinWheel = 0;
-		for (Individual individual : individuals) {
-			spinWheel += individual.getFitness();
-			if (spinWheel >= rouletteWheelPosition) {
-				return individual;
-			}
-		}
-		return individuals[population.size() - 1];
+		return population.getRouletteWheel().spin(this.random);
 	}
 
 	/**
@@ -199,28 +292,37 @@ public class GeneticAlgorithm {
 		// Create new population
 		Population newPopulation = new Population(population.size());
 
+		// Select every second parent up front if we're using SUS
+		Individual parents[] = null;
+		if (this.stochasticUniversalSampling) {
+			parents = population.getRouletteWheel().sample(new Individual[population.size()], this.random);
+		}
+
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
-				// Initialize offspring
-				Individual offspring = new Individual(parent1.getChromosomeLength());
-				
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
 				// Find second parent
-				Individual parent2 = selectParent(population);
-
-				// Loop over genome
-				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
-					// Use half of parent1's genes and half of parent2's genes
-					if (0.5 > Math.random()) {
-						offspring.setGene(geneIndex, parent1.getGene(geneIndex));
-					} else {
-						offspring.setGene(geneIndex, parent2.getGene(geneIndex));
-					}
+				Individual parent2;
+				if (parents != null) {
+					parent2 = parents[populationIndex];
+				} else {
+					parent2 = selectParent(population);
 				}
 
+				// Loop over genome a word at a time; each random bit in the
+				// mask picks which parent a gene comes from
+				long parent1Genes[] = parent1.getPackedChromosome();
+				long parent2Genes[] = parent2.getPackedChromosome();
+				long offspringGenes[] = new long[parent1Genes.length];
+				for (int word = 0; word < offspringGenes.length; word++) {
+					long mask = this.random.nextLong();
+					offspringGenes[word] = (parent1Genes[word] & mask) | (parent2Genes[word] & ~mask);
+				}
+				Individual offspring = new Individual(offspringGenes, parent1.getChromosomeLength());
+
 				// Add offspring to new population
 				newPopulation.setIndividual(populationIndex, offspring);
 			} else {
@@ -232,6 +334,44 @@ public class GeneticAlgorithm {
 		return newPopulation;
 	}
 
+	/**
+	 * Draw a block of random doubles into a reusable scratch buffer, so that
+	 * per-gene loops don't have to fetch their random numbers one at a time
+	 * 
+	 * @param count
+	 *            The number of random doubles needed
+	 * @return The scratch buffer, with the first count entries filled
+	 */
+	private double[] nextRandomBlock(int count) {
+		if (this.randomBlock.length < count) {
+			this.randomBlock = new double[count];
+		}
+		this.random.nextDoubles(this.randomBlock, count);
+		return this.randomBlock;
+	}
+
+	/**
+	 * Draw the number of genes to leave alone before the next mutation
+	 * 
+	 * Each gene mutates independently with probability mutationRate, so the
+	 * gap between one mutated gene and the next follows a geometric
+	 * distribution. Drawing the gap directly lets us jump straight to the next
+	 * gene that needs mutating instead of rolling the dice for every gene in
+	 * between, while mutating exactly the same distribution of genes.
+	 * 
+	 * @return The number of genes to skip
+	 */
+	private long nextMutationGap() {
+		if (this.mutationRate >= 1) {
+			return 0;
+		}
+		if (this.mutationRate <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		double gap = Math.floor(Math.log(1 - this.random.nextDouble()) / Math.log1p(-this.mutationRate));
+		return (long) Math.min(gap, Integer.MAX_VALUE);
+	}
+
 	/**
 	 * Apply mutation to population
 	 * 
@@ -256,19 +396,23 @@ public class GeneticAlgorithm {
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Loop over individual's genes
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-				// Skip mutation if this is an elite individual
-				if (populationIndex > this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
-						// Get new gene
-						int newGene = 1;
-						if (individual.getGene(geneIndex) == 1) {
-							newGene = 0;
+			// Skip mutation if this is an elite individual
+			if (populationIndex > this.elitismCount) {
+				if (this.geometricMutation) {
+					// Jump straight from one mutated gene to the next
+					for (long geneIndex = this.nextMutationGap(); geneIndex < individual
+							.getChromosomeLength(); geneIndex += 1 + this.nextMutationGap()) {
+						individual.flipGene((int) geneIndex);
+					}
+				} else {
+					// Loop over individual's genes
+					double rolls[] = this.nextRandomBlock(individual.getChromosomeLength());
+					for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+						// Does this gene need mutation?
+						if (this.mutationRate > rolls[geneIndex]) {
+							// Mutate gene
+							individual.flipGene(geneIndex);
 						}
-						// Mutate gene
-						individual.setGene(geneIndex, newGene);
 					}
 				}
 			}
@@ -4,7 +4,8 @@ package chapter2;
  * An "Individual" represents a single candidate solution. The core piece of
  * information about an individual is its "chromosome", which is an encoding of
  * a possible solution to the problem at hand. A chromosome can be a string, an
- * array, a list, etc -- in this class, the chromosome is an integer array. 
+ * array, a list, etc -- in this class, the chromosome is a string of bits,
+ * packed 64 to a long.
  * 
  * An individual position in the chromosome is called a gene, and these are the
  * atomic pieces of the solution that can be manipulated or mutated. When the
@@ -19,18 +20,51 @@ package chapter2;
  *
  */
 public class Individual {
-	private int[] chromosome;
+	/**
+	 * Gene i is stored in bit (i % 64) of word (i / 64). Storing one gene per
+	 * bit rather than one per int takes 1/32nd of the memory, and lets us
+	 * count, copy and cross over 64 genes at a time. Any unused bits at the
+	 * top of the last word are always kept at zero.
+	 */
+	private long[] chromosome;
+	private int chromosomeLength;
 	private double fitness = -1;
 
+	/**
+	 * Whether the fitness value is out of date, ie, the chromosome has changed
+	 * since the fitness was last stored. Evaluation skips individuals whose
+	 * fitness is still current.
+	 */
+	private boolean fitnessStale = true;
+
 	/**
 	 * Initializes individual with specific chromosome
 	 * 
 	 * @param chromosome
-	 *            The chromosome to give individual
+	 *            The chromosome to give individual, one 0 or 1 per element
 	 */
 	public Individual(int[] chromosome) {
 		// Create individual chromosome
+		this.chromosomeLength = chromosome.length;
+		this.chromosome = new long[Individual.wordsFor(chromosome.length)];
+		for (int gene = 0; gene < chromosome.length; gene++) {
+			this.setGene(gene, chromosome[gene]);
+		}
+	}
+
+	/**
+	 * Initializes individual with an already packed chromosome
+	 * 
+	 * @param chromosome
+	 *            The packed chromosome, which the individual takes ownership
+	 *            of
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(long[] chromosome, int chromosomeLength) {
 		this.chromosome = chromosome;
+		this.chromosomeLength = chromosomeLength;
+		this.clearUnusedBits();
 	}
 
 	/**
@@ -43,28 +77,74 @@ public class Individual {
 	 * (for instance, in a traveling salesman problem, this would be an invalid
 	 * solution).
 	 * 
+	 * Because the genes are packed, we can fill 64 of them at a time from a
+	 * single random long.
+	 * 
+	 * @param chromosomeLength
+	 *            The length of the individuals chromosome
+	 * @param random
+	 *            The source of random genes
+	 */
+	public Individual(int chromosomeLength, RandomSource random) {
+		this.chromosomeLength = chromosomeLength;
+		this.chromosome = new long[Individual.wordsFor(chromosomeLength)];
+		random.nextLongs(this.chromosome, this.chromosome.length);
+		this.clearUnusedBits();
+	}
+
+	/**
+	 * Initializes random individual using the default random source
+	 * 
 	 * @param chromosomeLength
 	 *            The length of the individuals chromosome
 	 */
 	public Individual(int chromosomeLength) {
+		this(chromosomeLength, RandomSource.getDefault());
+	}
 
-		this.chromosome = new int[chromosomeLength];
-		for (int gene = 0; gene < chromosomeLength; gene++) {
-			if (0.5 < Math.random()) {
-				this.setGene(gene, 1);
-			} else {
-				this.setGene(gene, 0);
-			}
-		}
+	/**
+	 * Number of longs needed to hold a chromosome of the given length
+	 * 
+	 * @param chromosomeLength
+	 * @return number of words
+	 */
+	public static int wordsFor(int chromosomeLength) {
+		return (chromosomeLength + 63) >>> 6;
+	}
 
+	/**
+	 * Zero the bits of the last word that lie beyond the chromosome
+	 */
+	private void clearUnusedBits() {
+		int usedBits = this.chromosomeLength & 63;
+		if (usedBits != 0) {
+			this.chromosome[this.chromosome.length - 1] &= (1L << usedBits) - 1;
+		}
 	}
 
 	/**
-	 * Gets individual's chromosome
+	 * Gets individual's chromosome, unpacked to one 0 or 1 per element.
+	 * 
+	 * This creates a new array every time it's called; use
+	 * getPackedChromosome in performance-sensitive code.
 	 * 
 	 * @return The individual's chromosome
 	 */
 	public int[] getChromosome() {
+		int[] unpacked = new int[this.chromosomeLength];
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			unpacked[gene] = this.getGene(gene);
+		}
+		return unpacked;
+	}
+
+	/**
+	 * Gets individual's packed chromosome. This is the individual's own array,
+	 * not a copy, so call markFitnessStale after writing to it.
+	 * 
+	 * @return The individual's chromosome, 64 genes per long
+	 */
+	public long[] getPackedChromosome() {
 		return this.chromosome;
 	}
 
@@ -74,18 +154,23 @@ public class Individual {
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
 	 * Set gene at offset
 	 * 
 	 * @param gene
+	 *            0 or 1; any non-zero value is treated as 1
 	 * @param offset
-	 * @return gene
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		if (gene != 0) {
+			this.chromosome[offset >>> 6] |= 1L << offset;
+		} else {
+			this.chromosome[offset >>> 6] &= ~(1L << offset);
+		}
+		this.fitnessStale = true;
 	}
 
 	/**
@@ -95,7 +180,30 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		return (int) ((this.chromosome[offset >>> 6] >>> offset) & 1L);
+	}
+
+	/**
+	 * Flip the gene at offset from 0 to 1 or vice versa
+	 * 
+	 * @param offset
+	 */
+	public void flipGene(int offset) {
+		this.chromosome[offset >>> 6] ^= 1L << offset;
+		this.fitnessStale = true;
+	}
+
+	/**
+	 * Count the number of genes that are set to 1
+	 * 
+	 * @return number of ones in the chromosome
+	 */
+	public int countOnes() {
+		int ones = 0;
+		for (long word : this.chromosome) {
+			ones += Long.bitCount(word);
+		}
+		return ones;
 	}
 
 	/**
@@ -106,6 +214,24 @@ public class Individual {
 	 */
 	public void setFitness(double fitness) {
 		this.fitness = fitness;
+		this.fitnessStale = false;
+	}
+
+	/**
+	 * Check whether the chromosome has changed since fitness was last stored
+	 * 
+	 * @return True if the individual needs to be evaluated
+	 */
+	public boolean isFitnessStale() {
+		return this.fitnessStale;
+	}
+
+	/**
+	 * Mark the fitness as out of date. setGene does this already; call it
+	 * after changing the chromosome array directly.
+	 */
+	public void markFitnessStale() {
+		this.fitnessStale = true;
 	}
 
 	/**
@@ -116,18 +242,18 @@ public class Individual {
 	public double getFitness() {
 		return this.fitness;
 	}
-	
-	
+
+
 	/**
 	 * Display the chromosome as a string.
 	 * 
 	 * @return string representation of the chromosome
 	 */
 	public String toString() {
-		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene];
+		StringBuilder output = new StringBuilder(this.chromosomeLength);
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output.append(this.getGene(gene));
 		}
-		return output;
+		return output.toString();
 	}
 }
@@ -0,0 +1,185 @@
+package chapter2;
+
+import java.util.SplittableRandom;
+
+/**
+ * A seedable source of random numbers for the genetic algorithm.
+ * 
+ * Math.random() draws every number from one shared java.util.Random, which
+ * means every thread competes for the same seed, and there's no way to replay
+ * a run. Instead, the GA and its helpers draw from a RandomSource that's
+ * handed to them.
+ * 
+ * A RandomSource is created from a single master seed. The thread that
+ * creates it gets a stream derived directly from that seed, so a
+ * single-threaded run can be reproduced exactly by reusing the seed. Any other
+ * thread that draws from the same RandomSource is given its own stream split
+ * off from the master, so threads never contend with each other. When
+ * parallel work needs to be reproducible too, give each task its own source
+ * with split() rather than sharing one.
+ * 
+ * The project targets Java 8, so the streams are SplittableRandoms rather than
+ * java.util.random.RandomGenerators.
+ */
+public class RandomSource {
+	/**
+	 * Shared source for code that isn't handed one explicitly
+	 */
+	private static final RandomSource DEFAULT = new RandomSource();
+
+	private final long seed;
+	private final SplittableRandom master;
+	private final Thread owner;
+	private final SplittableRandom ownerStream;
+	private final ThreadLocal<SplittableRandom> streams;
+
+	/**
+	 * Create a random source with an arbitrary seed
+	 */
+	public RandomSource() {
+		this(new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * Create a random source from a master seed
+	 * 
+	 * @param seed
+	 *            The master seed
+	 */
+	public RandomSource(long seed) {
+		this.seed = seed;
+		this.master = new SplittableRandom(seed);
+		this.owner = Thread.currentThread();
+		this.ownerStream = this.master.split();
+		this.streams = new ThreadLocal<SplittableRandom>() {
+			@Override
+			protected SplittableRandom initialValue() {
+				return RandomSource.this.splitMaster();
+			}
+		};
+	}
+
+	/**
+	 * Get the shared default random source
+	 * 
+	 * @return The default source
+	 */
+	public static RandomSource getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get the master seed this source was created with
+	 * 
+	 * @return seed
+	 */
+	public long getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * Create an independent child source, seeded from this one
+	 * 
+	 * @return A new random source
+	 */
+	public RandomSource split() {
+		return new RandomSource(this.stream().nextLong());
+	}
+
+	/**
+	 * Hand out a new stream for a thread
+	 */
+	private synchronized SplittableRandom splitMaster() {
+		return this.master.split();
+	}
+
+	/**
+	 * Get the calling thread's stream
+	 */
+	private SplittableRandom stream() {
+		if (Thread.currentThread() == this.owner) {
+			return this.ownerStream;
+		}
+		return this.streams.get();
+	}
+
+	/**
+	 * @return A random double in [0, 1)
+	 */
+	public double nextDouble() {
+		return this.stream().nextDouble();
+	}
+
+	/**
+	 * @param bound
+	 *            The upper bound (exclusive), must be positive
+	 * @return A random int in [0, bound)
+	 */
+	public int nextInt(int bound) {
+		return this.stream().nextInt(bound);
+	}
+
+	/**
+	 * @return A random long, with all 64 bits random
+	 */
+	public long nextLong() {
+		return this.stream().nextLong();
+	}
+
+	/**
+	 * @return A random boolean
+	 */
+	public boolean nextBoolean() {
+		return this.stream().nextBoolean();
+	}
+
+	/**
+	 * Fill a buffer with random doubles in [0, 1)
+	 * 
+	 * Hot loops can draw a whole block at once this way, rather than looking
+	 * up their stream for every number.
+	 * 
+	 * @param buffer
+	 *            The buffer to fill
+	 * @param count
+	 *            How many entries to fill, starting at index 0
+	 */
+	public void nextDoubles(double buffer[], int count) {
+		SplittableRandom stream = this.stream();
+		for (int i = 0; i < count; i++) {
+			buffer[i] = stream.nextDouble();
+		}
+	}
+
+	/**
+	 * Fill a buffer with random ints in [0, bound)
+	 * 
+	 * @param buffer
+	 *            The buffer to fill
+	 * @param count
+	 *            How many entries to fill, starting at index 0
+	 * @param bound
+	 *            The upper bound (exclusive), must be positive
+	 */
+	public void nextInts(int buffer[], int count, int bound) {
+		SplittableRandom stream = this.stream();
+		for (int i = 0; i < count; i++) {
+			buffer[i] = stream.nextInt(bound);
+		}
+	}
+
+	/**
+	 * Fill a buffer with random longs
+	 * 
+	 * @param buffer
+	 *            The buffer to fill
+	 * @param count
+	 *            How many entries to fill, starting at index 0
+	 */
+	public void nextLongs(long buffer[], int count) {
+		SplittableRandom stream = this.stream();
+		for (int i = 0; i < count; i++) {
+			buffer[i] = stream.nextLong();
+		}
+	}
+}
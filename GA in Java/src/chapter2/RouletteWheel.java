@@ -0,0 +1,132 @@
+package chapter2;
+
+/**
+ * A roulette wheel for fitness-proportionate selection.
+ * 
+ * The naive way to spin a roulette wheel is to pick a random position between
+ * 0 and the population's total fitness, and then walk over the individuals
+ * adding up their fitness until we pass that position. That's O(n) per spin,
+ * and since we spin once per offspring, selection ends up being O(n^2) per
+ * generation.
+ * 
+ * Instead, we build the running total of fitness values once (the "wheel"),
+ * and then find the position with a binary search, which makes each spin
+ * O(log n). The wheel is only valid for as long as the population's fitness
+ * values don't change, which is why the Population class hands it out and
+ * throws it away after every evaluation.
+ * 
+ * The wheel also supports stochastic universal sampling (SUS): rather than
+ * spinning once per parent, we spin once and then place N equally spaced
+ * pointers around the wheel. This selects all parents for a generation in a
+ * single pass and gives each individual a number of selections that is very
+ * close to its expected value.
+ */
+public class RouletteWheel {
+	private final Individual individuals[];
+	private final double cumulativeFitness[];
+	private final double totalFitness;
+
+	/**
+	 * Build a roulette wheel from a population's current fitness values
+	 * 
+	 * @param population
+	 *            The population to select from
+	 */
+	public RouletteWheel(Population population) {
+		// Copy the individuals; the population may get sorted underneath us
+		this.individuals = population.getIndividuals().clone();
+		this.cumulativeFitness = new double[this.individuals.length];
+
+		double runningTotal = 0;
+		for (int i = 0; i < this.individuals.length; i++) {
+			runningTotal += this.individuals[i].getFitness();
+			this.cumulativeFitness[i] = runningTotal;
+		}
+		this.totalFitness = runningTotal;
+	}
+
+	/**
+	 * Spin the wheel once
+	 * 
+	 * @param random
+	 *            The source of the spin
+	 * @return The selected individual
+	 */
+	public Individual spin(RandomSource random) {
+		return this.select(random.nextDouble() * this.totalFitness);
+	}
+
+	/**
+	 * Find the individual at a given position on the wheel, ie, the first
+	 * individual whose running fitness total reaches the position.
+	 * 
+	 * @param position
+	 *            A position between 0 and the total fitness
+	 * @return The individual at that position
+	 */
+	public Individual select(double position) {
+		int low = 0;
+		int high = this.cumulativeFitness.length - 1;
+
+		// Binary search for the first running total >= position
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (this.cumulativeFitness[mid] >= position) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+
+		return this.individuals[low];
+	}
+
+	/**
+	 * Select several individuals at once using stochastic universal sampling
+	 * 
+	 * The pointers are walked around the wheel in order, so the selected
+	 * individuals come out grouped by their position on the wheel. We shuffle
+	 * them before returning so that callers can simply consume them in order.
+	 * 
+	 * @param parents
+	 *            The array to fill with selected individuals
+	 * @param random
+	 *            The source of the spin and the shuffle
+	 * @return The same array, filled
+	 */
+	public Individual[] sample(Individual parents[], RandomSource random) {
+		int count = parents.length;
+		double spacing = this.totalFitness / count;
+		double pointer = random.nextDouble() * spacing;
+
+		// Walk all the pointers around the wheel in one pass
+		int individualIndex = 0;
+		for (int i = 0; i < count; i++) {
+			while (individualIndex < this.cumulativeFitness.length - 1
+					&& this.cumulativeFitness[individualIndex] < pointer) {
+				individualIndex++;
+			}
+			parents[i] = this.individuals[individualIndex];
+			pointer += spacing;
+		}
+
+		// Shuffle the selection
+		for (int i = count - 1; i > 0; i--) {
+			int index = random.nextInt(i + 1);
+			Individual a = parents[index];
+			parents[index] = parents[i];
+			parents[i] = a;
+		}
+
+		return parents;
+	}
+
+	/**
+	 * Get the total fitness covered by the wheel
+	 * 
+	 * @return The sum of all fitness values
+	 */
+	public double getTotalFitness() {
+		return this.totalFitness;
+	}
+}
@@ -0,0 +1,497 @@
+package chapter3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of fitness values, keyed by chromosome.
+ * 
+ * Once a population starts to converge it fills up with copies of the same
+ * few chromosomes, and every copy would otherwise be run through the maze
+ * again. The cache remembers the fitness of recently evaluated chromosomes so
+ * that the GA can look duplicates up instead.
+ * 
+ * Chromosomes are found by a 64-bit hash of their packed words, but every
+ * entry keeps its own copy of the chromosome and a lookup only succeeds if the
+ * whole chromosome matches, so a hash collision can never return the wrong
+ * fitness. The cache never holds more than its capacity; once it's full, each
+ * new entry evicts an old one, chosen by either the LRU or CLOCK policy.
+ * 
+ * The entries are split between several independently locked segments, so
+ * threads evaluating at the same time rarely wait for each other.
+ * 
+ * A fitness value only means something for the maze it was measured in, so
+ * use one cache per maze, or clear the cache when the maze changes.
+ */
+public class FitnessCache {
+
+	/**
+	 * How to choose the entry to evict when the cache is full
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Evict the least recently used entry. Every hit has to move the entry
+		 * to the front of a list.
+		 */
+		LRU,
+
+		/**
+		 * Sweep a "clock hand" over the entries and evict the first one that
+		 * hasn't been used since the hand last passed it. This approximates
+		 * LRU, but a hit only has to set a flag.
+		 */
+		CLOCK
+	}
+
+	/**
+	 * Split the cache into at most this many segments, and only while each
+	 * segment gets at least MIN_SEGMENT_CAPACITY entries
+	 */
+	private static final int MAX_SEGMENTS = 16;
+	private static final int MIN_SEGMENT_CAPACITY = 16;
+
+	private final Segment segments[];
+	private final int capacity;
+	private final EvictionPolicy policy;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create a fitness cache
+	 * 
+	 * @param capacity
+	 *            The maximum number of chromosomes to remember
+	 * @param policy
+	 *            How to choose entries to evict
+	 */
+	public FitnessCache(int capacity, EvictionPolicy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Cache capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+
+		int segmentCount = 1;
+		while (segmentCount < MAX_SEGMENTS && segmentCount * 2 * MIN_SEGMENT_CAPACITY <= capacity) {
+			segmentCount *= 2;
+		}
+
+		// Share the capacity out exactly, so the total is never exceeded
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			int segmentCapacity = capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0);
+			this.segments[i] = new Segment(segmentCapacity, policy);
+		}
+	}
+
+	/**
+	 * Create a fitness cache with LRU eviction
+	 * 
+	 * @param capacity
+	 *            The maximum number of chromosomes to remember
+	 */
+	public FitnessCache(int capacity) {
+		this(capacity, EvictionPolicy.LRU);
+	}
+
+	/**
+	 * Hash a packed chromosome to 64 bits
+	 * 
+	 * Each word is mixed into the running hash with a multiply and rotate, and
+	 * the result is finished with the SplitMix64 finalizer so that every input
+	 * bit affects every output bit.
+	 * 
+	 * @param words
+	 *            The packed chromosome
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return The hash
+	 */
+	public static long hash(long words[], int chromosomeLength) {
+		long hash = chromosomeLength * 0x9E3779B97F4A7C15L;
+		for (long word : words) {
+			hash = Long.rotateLeft(hash ^ word, 29) * 0xBF58476D1CE4E5B9L;
+		}
+		hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+		return hash ^ (hash >>> 31);
+	}
+
+	/**
+	 * Look up the fitness of an individual's chromosome
+	 * 
+	 * @param individual
+	 *            The individual to look up
+	 * @return The cached fitness, or Double.NaN if the chromosome isn't cached
+	 */
+	public double get(Individual individual) {
+		return this.get(individual.getPackedChromosome(), individual.getChromosomeLength());
+	}
+
+	/**
+	 * Look up the fitness of a packed chromosome, or of any key packed the
+	 * same way, such as a canonical chromosome
+	 * 
+	 * @param genes
+	 *            The packed chromosome
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return The cached fitness, or Double.NaN if the chromosome isn't cached
+	 */
+	public double get(long genes[], int chromosomeLength) {
+		long hash = FitnessCache.hash(genes, chromosomeLength);
+
+		double fitness = this.segmentFor(hash).get(hash, genes, chromosomeLength);
+		if (Double.isNaN(fitness)) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return fitness;
+	}
+
+	/**
+	 * Remember the fitness of an individual's chromosome
+	 * 
+	 * @param individual
+	 *            The individual that was evaluated
+	 * @param fitness
+	 *            Its fitness
+	 */
+	public void put(Individual individual, double fitness) {
+		this.put(individual.getPackedChromosome(), individual.getChromosomeLength(), fitness);
+	}
+
+	/**
+	 * Remember the fitness of a packed chromosome. The cache keeps its own
+	 * copy, so the array can be reused afterwards.
+	 * 
+	 * @param genes
+	 *            The packed chromosome
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @param fitness
+	 *            Its fitness
+	 */
+	public void put(long genes[], int chromosomeLength, double fitness) {
+		long hash = FitnessCache.hash(genes, chromosomeLength);
+
+		if (this.segmentFor(hash).put(hash, genes, chromosomeLength, fitness)) {
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Forget every cached chromosome. The counters are left alone.
+	 */
+	public void clear() {
+		for (Segment segment : this.segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Pick the segment for a hash. The table inside a segment is indexed by
+	 * the low bits, so use high bits here.
+	 */
+	private Segment segmentFor(long hash) {
+		return this.segments[(int) (hash >>> 48) & (this.segments.length - 1)];
+	}
+
+	/**
+	 * @return The number of chromosomes currently cached
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : this.segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The maximum number of chromosomes the cache will hold
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return The eviction policy
+	 */
+	public EvictionPolicy getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * @return The number of lookups that found their chromosome
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of lookups that didn't find their chromosome
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return The number of entries evicted to make room for new ones
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public String toString() {
+		return "hits: " + this.getHits() + ", misses: " + this.getMisses() + ", evictions: " + this.getEvictions();
+	}
+
+	/**
+	 * One cached chromosome. Evicted entries are reused for the chromosome
+	 * that replaces them, so a full cache doesn't allocate.
+	 */
+	private static final class Entry {
+		long hash;
+		long genes[];
+		int chromosomeLength;
+		double fitness;
+
+		// Neighbours in the LRU list
+		Entry newer;
+		Entry older;
+
+		// Whether the entry has been used since the CLOCK hand last passed it
+		boolean referenced;
+	}
+
+	/**
+	 * A fixed-capacity, independently locked part of the cache.
+	 * 
+	 * Entries are found through an open-addressing hash table with linear
+	 * probing, sized to at most half full. Depending on the policy, they're
+	 * also either linked into a list from most to least recently used, or
+	 * arranged around a clock.
+	 */
+	private static final class Segment {
+		private final int capacity;
+		private final EvictionPolicy policy;
+		private final Entry table[];
+		private final int mask;
+		private int size = 0;
+
+		// LRU list
+		private Entry newest;
+		private Entry oldest;
+
+		// CLOCK ring
+		private final Entry clock[];
+		private int hand = 0;
+
+		Segment(int capacity, EvictionPolicy policy) {
+			this.capacity = capacity;
+			this.policy = policy;
+
+			int tableSize = 2;
+			while (tableSize < capacity * 2) {
+				tableSize *= 2;
+			}
+			this.table = new Entry[tableSize];
+			this.mask = tableSize - 1;
+			this.clock = policy == EvictionPolicy.CLOCK ? new Entry[capacity] : null;
+		}
+
+		synchronized double get(long hash, long genes[], int chromosomeLength) {
+			int index = this.indexOf(hash, genes, chromosomeLength);
+			if (index < 0) {
+				return Double.NaN;
+			}
+
+			Entry entry = this.table[index];
+			if (this.policy == EvictionPolicy.LRU) {
+				this.unlink(entry);
+				this.linkNewest(entry);
+			} else {
+				entry.referenced = true;
+			}
+			return entry.fitness;
+		}
+
+		/**
+		 * @return True if an entry had to be evicted
+		 */
+		synchronized boolean put(long hash, long genes[], int chromosomeLength, double fitness) {
+			int index = this.indexOf(hash, genes, chromosomeLength);
+			if (index >= 0) {
+				// Already cached, perhaps by another thread
+				this.table[index].fitness = fitness;
+				return false;
+			}
+
+			boolean evicted = false;
+			Entry entry;
+			if (this.size < this.capacity) {
+				entry = new Entry();
+				if (this.clock != null) {
+					this.clock[this.size] = entry;
+				}
+				this.size++;
+			} else {
+				entry = this.evict();
+				evicted = true;
+			}
+
+			entry.hash = hash;
+			if (entry.genes == null || entry.genes.length != genes.length) {
+				entry.genes = new long[genes.length];
+			}
+			System.arraycopy(genes, 0, entry.genes, 0, genes.length);
+			entry.chromosomeLength = chromosomeLength;
+			entry.fitness = fitness;
+			entry.referenced = false;
+			if (this.policy == EvictionPolicy.LRU) {
+				this.linkNewest(entry);
+			}
+
+			// Insert into the first free slot of the probe sequence
+			int slot = (int) hash & this.mask;
+			while (this.table[slot] != null) {
+				slot = (slot + 1) & this.mask;
+			}
+			this.table[slot] = entry;
+
+			return evicted;
+		}
+
+		synchronized void clear() {
+			for (int i = 0; i < this.table.length; i++) {
+				this.table[i] = null;
+			}
+			if (this.clock != null) {
+				for (int i = 0; i < this.clock.length; i++) {
+					this.clock[i] = null;
+				}
+			}
+			this.newest = null;
+			this.oldest = null;
+			this.hand = 0;
+			this.size = 0;
+		}
+
+		synchronized int size() {
+			return this.size;
+		}
+
+		/**
+		 * Find the table slot holding a chromosome
+		 * 
+		 * @return The slot, or -1 if it isn't cached
+		 */
+		private int indexOf(long hash, long genes[], int chromosomeLength) {
+			int slot = (int) hash & this.mask;
+			Entry entry;
+			while ((entry = this.table[slot]) != null) {
+				if (entry.hash == hash && entry.chromosomeLength == chromosomeLength
+						&& Segment.sameGenes(entry.genes, genes)) {
+					return slot;
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			return -1;
+		}
+
+		private static boolean sameGenes(long a[], long b[]) {
+			if (a.length != b.length) {
+				return false;
+			}
+			for (int i = 0; i < a.length; i++) {
+				if (a[i] != b[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Choose a victim according to the policy and remove it from the
+		 * table, ready to be reused. For CLOCK, the new entry takes over the
+		 * victim's place on the clock.
+		 */
+		private Entry evict() {
+			Entry victim;
+			if (this.policy == EvictionPolicy.LRU) {
+				victim = this.oldest;
+				this.unlink(victim);
+			} else {
+				// Give every recently used entry a second chance
+				while (this.clock[this.hand].referenced) {
+					this.clock[this.hand].referenced = false;
+					this.hand = (this.hand + 1) % this.capacity;
+				}
+				victim = this.clock[this.hand];
+				this.hand = (this.hand + 1) % this.capacity;
+			}
+
+			int slot = (int) victim.hash & this.mask;
+			while (this.table[slot] != victim) {
+				slot = (slot + 1) & this.mask;
+			}
+			this.removeAt(slot);
+			return victim;
+		}
+
+		/**
+		 * Remove the entry in a table slot, shifting later entries of the probe
+		 * sequence back so that no lookup stops at the hole
+		 */
+		private void removeAt(int slot) {
+			int hole = slot;
+			this.table[hole] = null;
+			int next = hole;
+			while (true) {
+				next = (next + 1) & this.mask;
+				Entry entry = this.table[next];
+				if (entry == null) {
+					return;
+				}
+				// Move the entry into the hole unless its home slot lies
+				// between the hole and where it is now
+				int home = (int) entry.hash & this.mask;
+				if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+					this.table[hole] = entry;
+					this.table[next] = null;
+					hole = next;
+				}
+			}
+		}
+
+		private void linkNewest(Entry entry) {
+			entry.older = this.newest;
+			entry.newer = null;
+			if (this.newest != null) {
+				this.newest.newer = entry;
+			}
+			this.newest = entry;
+			if (this.oldest == null) {
+				this.oldest = entry;
+			}
+		}
+
+		private void unlink(Entry entry) {
+			if (entry.newer != null) {
+				entry.newer.older = entry.older;
+			} else {
+				this.newest = entry.older;
+			}
+			if (entry.older != null) {
+				entry.older.newer = entry.newer;
+			} else {
+				this.oldest = entry.newer;
+			}
+			entry.newer = null;
+			entry.older = null;
+		}
+	}
+}
@@ -13,7 +13,7 @@ package chapter3;
  * the robot is at navigating a maze!
  * 
  * @author bkanber
- *
+ * 
  */
 public class GeneticAlgorithm {
 
@@ -31,14 +31,154 @@ public class GeneticAlgorithm {
 	 */
 	protected int tournamentSize;
 
+	/**
+	 * Source of all random numbers used by the algorithm
+	 */
+	private RandomSource random;
+
+	/**
+	 * Scratch buffer for random numbers drawn in blocks
+	 */
+	private double randomBlock[] = new double[0];
+
+	/**
+	 * Whether mutation should draw the distance to the next mutated gene from
+	 * a geometric distribution, rather than testing every gene in turn. Both
+	 * modes mutate genes with the same probabilities, but at low mutation
+	 * rates the geometric mode needs far fewer random numbers.
+	 */
+	private boolean geometricMutation = false;
+
+	/**
+	 * How many individuals the last call to evalPopulation evaluated, and how
+	 * many it skipped because their fitness was still current, along with the
+	 * running totals across all calls
+	 */
+	private int lastEvaluatedCount = 0;
+	private int lastSkippedCount = 0;
+	private long totalEvaluatedCount = 0;
+	private long totalSkippedCount = 0;
+
+	/**
+	 * Cache of fitness values for chromosomes that have already been
+	 * evaluated, or null to evaluate every stale individual from scratch
+	 */
+	private FitnessCache fitnessCache = null;
+
+	/**
+	 * Whether to key the fitness cache on canonical chromosomes, with every
+	 * gene that can't affect fitness cleared
+	 */
+	private boolean canonicalCacheKeys = true;
+
+	/**
+	 * The gene mask for canonical keys, along with the maze or evaluator and
+	 * chromosome length it was made for
+	 */
+	private Object geneMaskSource = null;
+	private int geneMaskLength = -1;
+	private long geneMask[] = null;
+
+	/**
+	 * Each thread's scratch buffer for building canonical keys
+	 */
+	private final ThreadLocal<long[]> canonicalKeys = new ThreadLocal<long[]>();
+
+	/**
+	 * A reusable robot for each thread that evaluates individuals
+	 */
+	private final ThreadLocal<Robot> robots = new ThreadLocal<Robot>();
+
+	/**
+	 * Create a genetic algorithm that draws its random numbers from the given
+	 * source, so that runs can be reproduced from the source's seed.
+	 */
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
-			int tournamentSize) {
+			int tournamentSize, RandomSource random) {
 
 		this.populationSize = populationSize;
 		this.mutationRate = mutationRate;
 		this.crossoverRate = crossoverRate;
 		this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+	}
+
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Switch between per-gene and geometric skip-sampling mutation
+	 * 
+	 * @param geometricMutation
+	 *            True to jump directly between mutated genes
+	 */
+	public void setGeometricMutation(boolean geometricMutation) {
+		this.geometricMutation = geometricMutation;
+	}
+
+	/**
+	 * Look up stale individuals in a fitness cache before evaluating them. The
+	 * cache is only valid for a single maze or maze suite, so don't share it
+	 * between runs against different ones.
+	 * 
+	 * @param fitnessCache
+	 *            The cache to use, or null to stop caching
+	 */
+	public void setFitnessCache(FitnessCache fitnessCache) {
+		this.fitnessCache = fitnessCache;
+	}
+
+	/**
+	 * @return The fitness cache, or null if there isn't one
+	 */
+	public FitnessCache getFitnessCache() {
+		return this.fitnessCache;
+	}
+
+	/**
+	 * Choose whether the fitness cache is keyed on canonical chromosomes.
+	 * 
+	 * In a given maze, most of the 64 sensor values can never come up, and
+	 * the genes for those don't affect fitness. With canonical keys on, which
+	 * is the default, those genes are cleared before the cache lookup, so
+	 * chromosomes that only differ there are recognised as duplicates.
+	 * 
+	 * @param canonicalCacheKeys
+	 *            True to clear unreachable genes from cache keys
+	 */
+	public void setCanonicalCacheKeys(boolean canonicalCacheKeys) {
+		this.canonicalCacheKeys = canonicalCacheKeys;
+	}
+
+	/**
+	 * @return The number of individuals evaluated by the last evalPopulation
+	 */
+	public int getLastEvaluatedCount() {
+		return this.lastEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped by the last evalPopulation
+	 */
+	public int getLastSkippedCount() {
+		return this.lastSkippedCount;
+	}
+
+	/**
+	 * @return The number of individuals evaluated across all generations
+	 */
+	public long getTotalEvaluatedCount() {
+		return this.totalEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped across all generations
+	 */
+	public long getTotalSkippedCount() {
+		return this.totalSkippedCount;
 	}
 
 	/**
@@ -50,7 +190,7 @@ public class GeneticAlgorithm {
 	 */
 	public Population initPopulation(int chromosomeLength) {
 		// Initialize population
-		Population population = new Population(this.populationSize, chromosomeLength);
+		Population population = new Population(this.populationSize, chromosomeLength, this.random);
 		return population;
 	}
 
@@ -58,21 +198,29 @@ public class GeneticAlgorithm {
 	 * Calculate fitness for an individual.
 	 * 
 	 * This fitness calculation is a little more involved than chapter2's. In
-	 * this case we initialize a new Robot class, and evaluate its performance
-	 * in the given maze.
+	 * this case we give the individual's chromosome to a Robot, and evaluate
+	 * its performance in the given maze.
+	 * 
+	 * Each thread keeps one robot and resets it for every individual, and the
+	 * robot uses the individual's own decoded controller and scores as it
+	 * moves, so evaluation doesn't allocate.
 	 * 
 	 * @param individual
 	 *            the individual to evaluate
 	 * @return double The fitness value for individual
 	 */
 	public double calcFitness(Individual individual, Maze maze) {
-		// Get individual's chromosome
-		int[] chromosome = individual.getChromosome();
+		// Get this thread's robot, or a new one if it's for a different maze
+		Robot robot = this.robots.get();
+		if (robot == null || robot.getMaze() != maze) {
+			robot = new Robot(maze, 100);
+			this.robots.set(robot);
+		}
 
 		// Get fitness
-		Robot robot = new Robot(chromosome, maze, 100);
+		robot.reset(individual);
 		robot.run();
-		int fitness = maze.scoreRoute(robot.getRoute());
+		int fitness = robot.getScore();
 
 		// Store fitness
 		individual.setFitness(fitness);
@@ -80,6 +228,114 @@ public class GeneticAlgorithm {
 		return fitness;
 	}
 
+	/**
+	 * Calculate fitness for an individual against a whole suite of mazes
+	 * 
+	 * Every maze is simulated: the evaluator's early abort only gives a bound
+	 * on the fitness, and the GA needs the exact value.
+	 * 
+	 * @param individual
+	 *            the individual to evaluate
+	 * @param evaluator
+	 *            the evaluator for the maze suite
+	 * @return double The fitness value for individual
+	 */
+	public double calcFitness(Individual individual, MultiMazeEvaluator evaluator) {
+		double fitness = evaluator.evaluate(individual);
+		individual.setFitness(fitness);
+		return fitness;
+	}
+
+	/**
+	 * Calculate an individual's fitness, unless the fitness cache already
+	 * knows the fitness of its chromosome
+	 * 
+	 * Unless canonical keys are turned off, the cache is keyed on the
+	 * chromosome with the genes for unreachable sensor values cleared, so
+	 * chromosomes that only differ in those genes share one entry.
+	 * 
+	 * @param individual
+	 *            the individual to evaluate
+	 * @param maze
+	 *            the maze to evaluate the individual against, if there's no
+	 *            evaluator
+	 * @param evaluator
+	 *            the maze suite to evaluate the individual against, or null
+	 * @return double The fitness value for individual
+	 */
+	private double cachedFitness(Individual individual, Maze maze, MultiMazeEvaluator evaluator) {
+		if (this.fitnessCache == null) {
+			return this.uncachedFitness(individual, maze, evaluator);
+		}
+
+		long key[] = this.cacheKey(individual, evaluator != null ? evaluator : maze);
+		int chromosomeLength = individual.getChromosomeLength();
+		double fitness = this.fitnessCache.get(key, chromosomeLength);
+		if (Double.isNaN(fitness)) {
+			fitness = this.uncachedFitness(individual, maze, evaluator);
+			this.fitnessCache.put(key, chromosomeLength, fitness);
+		} else {
+			individual.setFitness(fitness);
+		}
+		return fitness;
+	}
+
+	/**
+	 * Get the key to look an individual up in the fitness cache with
+	 * 
+	 * @param individual
+	 *            the individual to look up
+	 * @param source
+	 *            the Maze or MultiMazeEvaluator the individual is evaluated
+	 *            against
+	 * @return The individual's packed chromosome, or its canonical form in
+	 *         this thread's scratch buffer
+	 */
+	private long[] cacheKey(Individual individual, Object source) {
+		long key[] = individual.getPackedChromosome();
+		if (this.canonicalCacheKeys == false) {
+			return key;
+		}
+
+		long mask[] = this.getGeneMask(source, individual.getChromosomeLength());
+		long canonical[] = this.canonicalKeys.get();
+		if (canonical == null || canonical.length != key.length) {
+			canonical = new long[key.length];
+			this.canonicalKeys.set(canonical);
+		}
+		return individual.getCanonicalChromosome(mask, canonical);
+	}
+
+	/**
+	 * Get the mask of genes that can affect fitness in a maze or maze suite,
+	 * reusing the last one if it was for the same maze or suite
+	 * 
+	 * @param source
+	 *            The Maze or MultiMazeEvaluator
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return The gene mask
+	 */
+	private synchronized long[] getGeneMask(Object source, int chromosomeLength) {
+		if (this.geneMaskSource != source || this.geneMaskLength != chromosomeLength) {
+			if (source instanceof MultiMazeEvaluator) {
+				this.geneMask = ((MultiMazeEvaluator) source).getReachableGeneMask(chromosomeLength);
+			} else {
+				this.geneMask = ((Maze) source).getReachableGeneMask(chromosomeLength);
+			}
+			this.geneMaskSource = source;
+			this.geneMaskLength = chromosomeLength;
+		}
+		return this.geneMask;
+	}
+
+	private double uncachedFitness(Individual individual, Maze maze, MultiMazeEvaluator evaluator) {
+		if (evaluator != null) {
+			return this.calcFitness(individual, evaluator);
+		}
+		return this.calcFitness(individual, maze);
+	}
+
 	/**
 	 * Evaluate the whole population
 	 * 
@@ -93,20 +349,58 @@ public class GeneticAlgorithm {
 	 * problem in chapter2, we can't determine a fitness just by looking at the
 	 * chromosome -- we need to evaluate each member against the maze.
 	 * 
+	 * Individuals whose chromosome hasn't changed since their fitness was
+	 * calculated (elites, and parents that were carried over without crossover
+	 * or mutation) keep that fitness; only stale individuals are evaluated.
+	 * If there's a fitness cache, stale individuals are looked up there first.
+	 * 
 	 * @param population
 	 *            the population to evaluate
 	 * @param maze
 	 *            the maze to evaluate each individual against.
 	 */
 	public void evalPopulation(Population population, Maze maze) {
+		this.evalPopulation(population, maze, null);
+	}
+
+	/**
+	 * Evaluate the whole population against a suite of mazes
+	 * 
+	 * This works just like evaluating against a single maze, but each
+	 * individual's fitness is its aggregated score across the suite.
+	 * 
+	 * @param population
+	 *            the population to evaluate
+	 * @param evaluator
+	 *            the evaluator for the maze suite
+	 */
+	public void evalPopulation(Population population, MultiMazeEvaluator evaluator) {
+		this.evalPopulation(population, null, evaluator);
+	}
+
+	private void evalPopulation(Population population, Maze maze, MultiMazeEvaluator evaluator) {
 		double populationFitness = 0;
+		int evaluated = 0;
+		int skipped = 0;
 
 		// Loop over population evaluating individuals and suming population
 		// fitness
 		for (Individual individual : population.getIndividuals()) {
-			populationFitness += this.calcFitness(individual, maze);
+			// Only individuals whose chromosome has changed need evaluating
+			if (individual.isFitnessStale()) {
+				populationFitness += this.cachedFitness(individual, maze, evaluator);
+				evaluated++;
+			} else {
+				populationFitness += individual.getFitness();
+				skipped++;
+			}
 		}
 
+		this.lastEvaluatedCount = evaluated;
+		this.lastSkippedCount = skipped;
+		this.totalEvaluatedCount += evaluated;
+		this.totalSkippedCount += skipped;
+
 		population.setPopulationFitness(populationFitness);
 	}
 
@@ -133,22 +427,67 @@ public class GeneticAlgorithm {
 	 * Tournament selection works by choosing N random individuals, and then
 	 * choosing the best of those.
 	 * 
+	 * Rather than shuffling the whole population and copying the first N
+	 * individuals into a separate tournament population, we draw N random
+	 * indices (with replacement) and remember the fittest contestant. This
+	 * costs O(N) per parent, allocates nothing, and leaves the population in
+	 * the order getFittest sorted it into.
+	 * 
 	 * @param population
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
+		Individual winner = null;
 
-		// Add random individuals to the tournament
-		population.shuffle();
+		// Draw random contestants and keep the fittest one seen so far
 		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+			int contestantIndex = this.random.nextInt(population.size());
+			Individual contestant = population.getIndividual(contestantIndex);
+			if (winner == null || contestant.getFitness() > winner.getFitness()) {
+				winner = contestant;
+			}
 		}
 
 		// Return the best
-		return tournament.getFittest(0);
+		return winner;
+	}
+
+	/**
+	 * Draw a block of random doubles into a reusable scratch buffer, so that
+	 * per-gene loops don't have to fetch their random numbers one at a time
+	 * 
+	 * @param count
+	 *            The number of random doubles needed
+	 * @return The scratch buffer, with the first count entries filled
+	 */
+	private double[] nextRandomBlock(int count) {
+		if (this.randomBlock.length < count) {
+			this.randomBlock = new double[count];
+		}
+		this.random.nextDoubles(this.randomBlock, count);
+		return this.randomBlock;
+	}
+
+	/**
+	 * Draw the number of genes to leave alone before the next mutation
+	 * 
+	 * Each gene mutates independently with probability mutationRate, so the
+	 * gap between one mutated gene and the next follows a geometric
+	 * distribution. Drawing the gap directly lets us jump straight to the next
+	 * gene that needs mutating instead of rolling the dice for every gene in
+	 * between, while mutating exactly the same distribution of genes.
+	 * 
+	 * @return The number of genes to skip
+	 */
+	private long nextMutationGap() {
+		if (this.mutationRate >= 1) {
+			return 0;
+		}
+		if (this.mutationRate <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		double gap = Math.floor(Math.log(1 - this.random.nextDouble()) / Math.log1p(-this.mutationRate));
+		return (long) Math.min(gap, Integer.MAX_VALUE);
 	}
 
 	/**
@@ -168,19 +507,23 @@ public class GeneticAlgorithm {
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Loop over individual's genes
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-				// Skip mutation if this is an elite individual
-				if (populationIndex >= this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
-						// Get new gene
-						int newGene = 1;
-						if (individual.getGene(geneIndex) == 1) {
-							newGene = 0;
+			// Skip mutation if this is an elite individual
+			if (populationIndex >= this.elitismCount) {
+				if (this.geometricMutation) {
+					// Jump straight from one mutated gene to the next
+					for (long geneIndex = this.nextMutationGap(); geneIndex < individual
+							.getChromosomeLength(); geneIndex += 1 + this.nextMutationGap()) {
+						individual.flipGene((int) geneIndex);
+					}
+				} else {
+					// Loop over individual's genes
+					double rolls[] = this.nextRandomBlock(individual.getChromosomeLength());
+					for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+						// Does this gene need mutation?
+						if (this.mutationRate > rolls[geneIndex]) {
+							// Mutate gene
+							individual.flipGene(geneIndex);
 						}
-						// Mutate gene
-						individual.setGene(geneIndex, newGene);
 					}
 				}
 			}
@@ -227,25 +570,30 @@ public class GeneticAlgorithm {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
-				// Initialize offspring
-				Individual offspring = new Individual(parent1.getChromosomeLength());
-				
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
 				// Find second parent
 				Individual parent2 = this.selectParent(population);
 
 				// Get random swap point
-				int swapPoint = (int) (Math.random() * (parent1.getChromosomeLength() + 1));
+				int swapPoint = (int) (this.random.nextDouble() * (parent1.getChromosomeLength() + 1));
 
-				// Loop over genome
-				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
-					// Use half of parent1's genes and half of parent2's genes
-					if (geneIndex < swapPoint) {
-						offspring.setGene(geneIndex, parent1.getGene(geneIndex));
+				// Copy whole words from either side of the swap point, and
+				// mask together the one word that it falls in
+				long parent1Genes[] = parent1.getPackedChromosome();
+				long parent2Genes[] = parent2.getPackedChromosome();
+				long offspringGenes[] = new long[parent1Genes.length];
+				int swapWord = swapPoint >>> 6;
+				for (int word = 0; word < offspringGenes.length; word++) {
+					if (word < swapWord) {
+						offspringGenes[word] = parent1Genes[word];
+					} else if (word > swapWord) {
+						offspringGenes[word] = parent2Genes[word];
 					} else {
-						offspring.setGene(geneIndex, parent2.getGene(geneIndex));
+						long mask = (1L << swapPoint) - 1;
+						offspringGenes[word] = (parent1Genes[word] & mask) | (parent2Genes[word] & ~mask);
 					}
 				}
+				Individual offspring = new Individual(offspringGenes, parent1.getChromosomeLength());
 
 				// Add offspring to new population
 				newPopulation.setIndividual(populationIndex, offspring);
@@ -17,44 +17,482 @@ import java.util.ArrayList;
  * a fitness score for a path; it is this score that the genetic algorithm will
  * optimize.
  * 
+ * Internally, the maze isn't kept as a 2d array at all. Walls, route cells and
+ * goal cells are each stored as a "bit plane" with one bit per cell, packed 64
+ * to a long, and the start position is kept as a pair of coordinates. That's
+ * 1/32nd of the memory of an int per cell, which is what makes mazes with
+ * hundreds of millions of cells practical.
+ * 
+ * Each row of a plane starts on a word boundary, and the planes are padded
+ * with a border one cell wide all the way round, so the cell at (x, y) is bit
+ * (x + 1) of row (y + 1). The border is solid wall, which means the robot's
+ * sensors can look at any neighbour of any cell in the maze without checking
+ * bounds.
+ * 
  * @author bkanber
  *
  */
 public class Maze {
-	private final int maze[][];
-	private int startPosition[] = { -1, -1 };
+	/**
+	 * Headings, numbered clockwise, as used to index the sensor table
+	 */
+	public static final int NORTH = 0;
+	public static final int EAST = 1;
+	public static final int SOUTH = 2;
+	public static final int WEST = 3;
+
+	/**
+	 * Mazes with up to this many cells keep a precomputed sensor value for
+	 * every position and heading. Bigger mazes work sensor values out from
+	 * the wall plane on the fly, as the table would take 4 bytes per cell.
+	 */
+	private static final int SENSOR_TABLE_MAX_CELLS = 1 << 20;
+
+	/**
+	 * The sensor value for every heading and 3x3 wall neighbourhood, indexed
+	 * [heading][neighbourhood].
+	 * 
+	 * Bit ((dy + 1) * 3) + (dx + 1) of a neighbourhood is set if there's a wall
+	 * at offset (dx, dy) from the robot. The robot's six sensors each look at
+	 * one of those offsets, depending on which way it's facing, and set one
+	 * bit of the sensor value: front 1, front-left 2, front-right 4, left 8,
+	 * right 16, and back 32.
+	 */
+	private static final byte SENSOR_LOOKUP[][] = Maze.buildSensorLookup();
+
+	private final int width;
+	private final int height;
+	private final int rowWords;
+
+	private final long walls[];
+	private final long routes[];
+	private final long goals[];
+	private int startPosition[] = { 0, 0 };
+	private int routeCount = 0;
+
+	/**
+	 * The robot's sensor value for every position and heading, stored at
+	 * index ((y * width) + x) * 4 + heading, or null for big mazes.
+	 * 
+	 * The robot needs a sensor value on every single move. The maze never
+	 * changes, so for small mazes we work them all out once up front and the
+	 * robot just reads a byte.
+	 */
+	private final byte sensorTable[];
+
+	/**
+	 * Bit s is set if the robot can ever read sensor value s in this maze, as
+	 * described for computeReachableSensorMask. This takes a walk over the
+	 * whole maze, so it's only worked out the first time it's needed.
+	 */
+	private long reachableSensorMask;
+	private boolean reachableSensorMaskKnown = false;
 
 	public Maze(int maze[][]) {
-		this.maze = maze;
+		this.height = maze.length;
+		this.width = maze[0].length;
+		this.rowWords = Maze.rowWords(this.width);
+
+		int planeWords = (this.height + 2) * this.rowWords;
+		this.walls = new long[planeWords];
+		this.routes = new long[planeWords];
+		this.goals = new long[planeWords];
+		this.buildBorder();
+
+		boolean foundStart = false;
+		for (int y = 0; y < this.height; y++) {
+			for (int x = 0; x < this.width; x++) {
+				int value = maze[y][x];
+				if (value == 1) {
+					Maze.setBit(this.walls, this.bitIndex(x, y));
+				} else if (value == 3) {
+					Maze.setBit(this.routes, this.bitIndex(x, y));
+					this.routeCount++;
+				} else if (value == 4) {
+					Maze.setBit(this.goals, this.bitIndex(x, y));
+				} else if (value == 2 && foundStart == false) {
+					// Like the book's version, use the first start position
+					this.startPosition = new int[] { x, y };
+					foundStart = true;
+				}
+			}
+		}
+
+		this.sensorTable = this.buildSensorTable();
 	}
 
 	/**
-	 * Get start position of maze
+	 * Create a maze straight from bit planes that are already in the padded
+	 * layout described above, such as ones read from a maze file or made by
+	 * MazeGenerator. The maze takes ownership of the arrays.
 	 * 
-	 * @return int[] x,y start position of maze
+	 * Anything in the planes outside the maze itself is ignored: the border is
+	 * made solid wall, and route and goal bits there are cleared.
+	 * 
+	 * @param width
+	 *            The width of the maze
+	 * @param height
+	 *            The height of the maze
+	 * @param walls
+	 *            The wall plane
+	 * @param routes
+	 *            The route plane
+	 * @param goals
+	 *            The goal plane
+	 * @param startX
+	 *            The x coordinate of the start position
+	 * @param startY
+	 *            The y coordinate of the start position
 	 */
-	public int[] getStartPosition() {
-		// Check we already found start position
-		if (this.startPosition[0] != -1 && this.startPosition[1] != -1) {
-			return this.startPosition;
-		}
-
-		// Default return value
-		int startPosition[] = { 0, 0 };
-
-		// Loop over rows
-		for (int rowIndex = 0; rowIndex < this.maze.length; rowIndex++) {
-			// Loop over columns
-			for (int colIndex = 0; colIndex < this.maze[rowIndex].length; colIndex++) {
-				// 2 is the type for start position
-				if (this.maze[rowIndex][colIndex] == 2) {
-					this.startPosition = new int[] { colIndex, rowIndex };
-					return new int[] { colIndex, rowIndex };
+	Maze(int width, int height, long walls[], long routes[], long goals[], int startX, int startY) {
+		this.width = width;
+		this.height = height;
+		this.rowWords = Maze.rowWords(width);
+		this.walls = walls;
+		this.routes = routes;
+		this.goals = goals;
+		this.startPosition = new int[] { startX, startY };
+		this.buildBorder();
+
+		for (int y = -1; y <= height; y++) {
+			Maze.clearPadding(this.routes, this.rowWords, width, height, y);
+			Maze.clearPadding(this.goals, this.rowWords, width, height, y);
+		}
+		for (long word : this.routes) {
+			this.routeCount += Long.bitCount(word);
+		}
+
+		this.sensorTable = this.buildSensorTable();
+	}
+
+	/**
+	 * Number of longs needed for one padded row of a bit plane
+	 * 
+	 * @param width
+	 *            The width of the maze
+	 * @return number of words
+	 */
+	static int rowWords(int width) {
+		return (width + 2 + 63) >>> 6;
+	}
+
+	/**
+	 * Number of longs in a bit plane for a maze of the given size
+	 * 
+	 * @param width
+	 *            The width of the maze
+	 * @param height
+	 *            The height of the maze
+	 * @return number of words
+	 */
+	static int planeWords(int width, int height) {
+		return (height + 2) * Maze.rowWords(width);
+	}
+
+	/**
+	 * Index of a cell's bit in a plane
+	 * 
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @return The bit index
+	 */
+	private long bitIndex(int x, int y) {
+		return Maze.bitIndex(this.rowWords, x, y);
+	}
+
+	/**
+	 * Index of a cell's bit in a plane with the given row length
+	 * 
+	 * @param rowWords
+	 *            Number of longs in each padded row
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @return The bit index
+	 */
+	static long bitIndex(int rowWords, int x, int y) {
+		return ((long) (y + 1) * rowWords << 6) + x + 1;
+	}
+
+	static void setBit(long plane[], long bit) {
+		plane[(int) (bit >>> 6)] |= 1L << bit;
+	}
+
+	static void clearBit(long plane[], long bit) {
+		plane[(int) (bit >>> 6)] &= ~(1L << bit);
+	}
+
+	static boolean getBit(long plane[], long bit) {
+		return (plane[(int) (bit >>> 6)] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * Clear the bits of one padded row that lie outside the maze. Row -1 and
+	 * row height are border rows, so they're cleared completely.
+	 */
+	private static void clearPadding(long plane[], int rowWords, int width, int height, int y) {
+		int rowStart = (y + 1) * rowWords;
+		if (y < 0 || y >= height) {
+			for (int word = 0; word < rowWords; word++) {
+				plane[rowStart + word] = 0;
+			}
+			return;
+		}
+
+		// Keep bits 1 to width of the row
+		plane[rowStart] &= ~1L;
+		int lastWord = width >>> 6;
+		int keepBits = (width & 63) + 1;
+		if (keepBits < 64) {
+			plane[rowStart + lastWord] &= (1L << keepBits) - 1;
+		}
+		for (int word = lastWord + 1; word < rowWords; word++) {
+			plane[rowStart + word] = 0;
+		}
+	}
+
+	/**
+	 * Surround the maze with walls
+	 */
+	private void buildBorder() {
+		for (int x = -1; x <= this.width; x++) {
+			Maze.setBit(this.walls, this.bitIndex(x, -1));
+			Maze.setBit(this.walls, this.bitIndex(x, this.height));
+		}
+		for (int y = 0; y < this.height; y++) {
+			Maze.setBit(this.walls, this.bitIndex(-1, y));
+			Maze.setBit(this.walls, this.bitIndex(this.width, y));
+		}
+	}
+
+	/**
+	 * Work out the sensor value for every heading and wall neighbourhood
+	 * 
+	 * @return The lookup table
+	 */
+	private static byte[][] buildSensorLookup() {
+		// Offsets seen by the front, front-left, front-right, left, right and
+		// back sensors when facing north
+		int offsets[][] = { { 0, -1 }, { -1, -1 }, { 1, -1 }, { -1, 0 }, { 1, 0 }, { 0, 1 } };
+
+		byte lookup[][] = new byte[4][512];
+		for (int heading = NORTH; heading <= WEST; heading++) {
+			for (int neighbourhood = 0; neighbourhood < 512; neighbourhood++) {
+				int sensorVal = 0;
+				for (int sensor = 0; sensor < offsets.length; sensor++) {
+					int dx = offsets[sensor][0];
+					int dy = offsets[sensor][1];
+					// Turn the offset clockwise once for each step of heading
+					for (int turn = 0; turn < heading; turn++) {
+						int turned = -dy;
+						dy = dx;
+						dx = turned;
+					}
+					if ((neighbourhood & (1 << (((dy + 1) * 3) + dx + 1))) != 0) {
+						sensorVal |= 1 << sensor;
+					}
 				}
+				lookup[heading][neighbourhood] = (byte) sensorVal;
 			}
 		}
+		return lookup;
+	}
+
+	/**
+	 * Calculate the sensor value for every position and heading, if the maze
+	 * is small enough
+	 * 
+	 * @return The sensor table, or null
+	 */
+	private byte[] buildSensorTable() {
+		if ((long) this.width * this.height > SENSOR_TABLE_MAX_CELLS) {
+			return null;
+		}
 
-		return startPosition;
+		byte table[] = new byte[this.width * this.height * 4];
+		for (int y = 0; y < this.height; y++) {
+			for (int x = 0; x < this.width; x++) {
+				int neighbourhood = this.getWallNeighbourhood(x, y);
+				for (int heading = NORTH; heading <= WEST; heading++) {
+					table[((y * this.width) + x) * 4 + heading] = SENSOR_LOOKUP[heading][neighbourhood];
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Read the 3x3 block of walls centred on a position out of the wall plane,
+	 * three bits from each of three rows
+	 * 
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @return The neighbourhood, as described for SENSOR_LOOKUP
+	 */
+	private int getWallNeighbourhood(int x, int y) {
+		// Thanks to the border, the block's padded coordinates start at (x, y)
+		int shift = x & 63;
+		int rowStart = (y * this.rowWords) + (x >>> 6);
+		int neighbourhood = 0;
+		for (int row = 0; row < 3; row++) {
+			int word = rowStart + (row * this.rowWords);
+			long bits = this.walls[word] >>> shift;
+			if (shift > 61) {
+				// The block straddles two words
+				bits |= this.walls[word + 1] << (64 - shift);
+			}
+			neighbourhood |= ((int) bits & 7) << (row * 3);
+		}
+		return neighbourhood;
+	}
+
+	/**
+	 * Work out which sensor values the robot can ever read.
+	 * 
+	 * The robot starts on the start position and can only ever step onto an
+	 * open cell next to the one it's on, so this floods out from the start
+	 * position through open cells and collects the sensor value for every
+	 * heading of every cell it reaches. The start position always counts,
+	 * since the robot reads its sensors there before anything else. Goal cells
+	 * don't: the robot stops as soon as it reaches one, so whatever it would
+	 * do next doesn't matter, and nothing beyond a goal can be reached through
+	 * it.
+	 * 
+	 * @return The mask, with bit s set if sensor value s can be read
+	 */
+	private long computeReachableSensorMask() {
+		long seen[] = new long[this.walls.length];
+		long queue[] = new long[64];
+		int head = 0;
+		int count = 0;
+
+		int startX = this.startPosition[0];
+		int startY = this.startPosition[1];
+		long mask = 0;
+		for (int heading = NORTH; heading <= WEST; heading++) {
+			mask |= 1L << this.getSensorValue(startX, startY, heading);
+		}
+		Maze.setBit(seen, this.bitIndex(startX, startY));
+		queue[count++] = ((long) startY << 32) | startX;
+
+		// Stop early once every sensor value has turned up
+		while (count > 0 && mask != -1L) {
+			long cell = queue[head];
+			head = (head + 1) & (queue.length - 1);
+			count--;
+			int x = (int) cell;
+			int y = (int) (cell >>> 32);
+			if (this.isGoal(x, y)) {
+				continue;
+			}
+
+			for (int direction = NORTH; direction <= WEST; direction++) {
+				int nextX = x + (direction == EAST ? 1 : direction == WEST ? -1 : 0);
+				int nextY = y + (direction == SOUTH ? 1 : direction == NORTH ? -1 : 0);
+				if (this.isWall(nextX, nextY) || Maze.getBit(seen, this.bitIndex(nextX, nextY))) {
+					continue;
+				}
+				Maze.setBit(seen, this.bitIndex(nextX, nextY));
+				if (this.isGoal(nextX, nextY) == false) {
+					for (int heading = NORTH; heading <= WEST; heading++) {
+						mask |= 1L << this.getSensorValue(nextX, nextY, heading);
+					}
+				}
+
+				// The queue is a ring buffer; double it when it's full
+				if (count == queue.length) {
+					long grown[] = new long[queue.length * 2];
+					for (int i = 0; i < count; i++) {
+						grown[i] = queue[(head + i) & (queue.length - 1)];
+					}
+					queue = grown;
+					head = 0;
+				}
+				queue[(head + count) & (queue.length - 1)] = ((long) nextY << 32) | nextX;
+				count++;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Get the sensor values the robot can ever read in this maze. The action a
+	 * controller takes for any other sensor value can't affect its score.
+	 * 
+	 * @return long Mask with bit s set if sensor value s can be read
+	 */
+	public synchronized long getReachableSensorMask() {
+		if (this.reachableSensorMaskKnown == false) {
+			this.reachableSensorMask = this.computeReachableSensorMask();
+			this.reachableSensorMaskKnown = true;
+		}
+		return this.reachableSensorMask;
+	}
+
+	/**
+	 * Get the genes of a controller chromosome that can affect its score in
+	 * this maze, packed like Individual's chromosome. The action for sensor
+	 * value s is genes 2s and 2s + 1, so those are set for every reachable
+	 * sensor value.
+	 * 
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return long[] The gene mask
+	 */
+	public long[] getReachableGeneMask(int chromosomeLength) {
+		return Maze.geneMask(this.getReachableSensorMask(), chromosomeLength);
+	}
+
+	/**
+	 * Expand a sensor mask into a gene mask
+	 * 
+	 * @param sensorMask
+	 *            Mask with bit s set for each sensor value to keep
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return long[] The gene mask
+	 */
+	static long[] geneMask(long sensorMask, int chromosomeLength) {
+		long genes[] = new long[Individual.wordsFor(chromosomeLength)];
+		for (int sensorValue = 0; sensorValue * 2 < chromosomeLength && sensorValue < 64; sensorValue++) {
+			if ((sensorMask & (1L << sensorValue)) != 0) {
+				int gene = sensorValue * 2;
+				genes[gene >>> 6] |= 3L << gene;
+			}
+		}
+		return genes;
+	}
+
+	/**
+	 * Get the robot's sensor value at a position
+	 * 
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @param heading
+	 *            One of NORTH, EAST, SOUTH or WEST
+	 * @return int Sensor value
+	 */
+	public int getSensorValue(int x, int y, int heading) {
+		if (this.sensorTable != null) {
+			return this.sensorTable[((y * this.width) + x) * 4 + heading];
+		}
+		return SENSOR_LOOKUP[heading][this.getWallNeighbourhood(x, y)];
+	}
+
+	/**
+	 * Get start position of maze
+	 * 
+	 * @return int[] x,y start position of maze
+	 */
+	public int[] getStartPosition() {
+		return this.startPosition;
 	}
 
 	/**
@@ -67,14 +505,23 @@ public class Maze {
 	 * @return int Position value
 	 */
 	public int getPositionValue(int x, int y) {
-		if (x < 0 || y < 0 || x >= this.maze.length || y >= this.maze[0].length) {
+		if (this.isWall(x, y)) {
 			return 1;
 		}
-		return this.maze[y][x];
+		if (this.isRoute(x, y)) {
+			return 3;
+		}
+		if (this.isGoal(x, y)) {
+			return 4;
+		}
+		if (x == this.startPosition[0] && y == this.startPosition[1]) {
+			return 2;
+		}
+		return 0;
 	}
 
 	/**
-	 * Check if position is wall
+	 * Check if position is wall. Anywhere outside the maze counts as wall.
 	 * 
 	 * @param x
 	 *            position
@@ -83,7 +530,68 @@ public class Maze {
 	 * @return boolean
 	 */
 	public boolean isWall(int x, int y) {
-		return (this.getPositionValue(x, y) == 1);
+		if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+			return true;
+		}
+		return Maze.getBit(this.walls, this.bitIndex(x, y));
+	}
+
+	/**
+	 * Check if position is part of the correct route, ie, worth a point
+	 * 
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @return boolean
+	 */
+	public boolean isRoute(int x, int y) {
+		if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+			return false;
+		}
+		return Maze.getBit(this.routes, this.bitIndex(x, y));
+	}
+
+	/**
+	 * Check if position is a goal
+	 * 
+	 * @param x
+	 *            position
+	 * @param y
+	 *            position
+	 * @return boolean
+	 */
+	public boolean isGoal(int x, int y) {
+		if (x < 0 || y < 0 || x >= this.width || y >= this.height) {
+			return false;
+		}
+		return Maze.getBit(this.goals, this.bitIndex(x, y));
+	}
+
+	/**
+	 * Get the number of route cells in the maze. A robot earns at most one
+	 * point for each, so this is the highest possible score.
+	 * 
+	 * @return int Number of route cells
+	 */
+	public int getRouteCount() {
+		return this.routeCount;
+	}
+
+	/**
+	 * Get the maze's bit planes, in the padded layout described above. These
+	 * are the maze's own arrays, for writing the maze out; don't modify them.
+	 */
+	long[] getWallPlane() {
+		return this.walls;
+	}
+
+	long[] getRoutePlane() {
+		return this.routes;
+	}
+
+	long[] getGoalPlane() {
+		return this.goals;
 	}
 
 	/**
@@ -92,7 +600,7 @@ public class Maze {
 	 * @return int Max index
 	 */
 	public int getMaxX() {
-		return this.maze[0].length - 1;
+		return this.width - 1;
 	}
 
 	/**
@@ -101,7 +609,7 @@ public class Maze {
 	 * @return int Max index
 	 */
 	public int getMaxY() {
-		return this.maze.length - 1;
+		return this.height - 1;
 	}
 
 	/**
@@ -116,16 +624,17 @@ public class Maze {
 	 */
 	public int scoreRoute(ArrayList<int[]> route) {
 		int score = 0;
-		boolean visited[][] = new boolean[this.getMaxY() + 1][this.getMaxX() + 1];
+		long visited[] = new long[this.routes.length];
 
 		// Loop over route and score each move
 		for (Object routeStep : route) {
 			int step[] = (int[]) routeStep;
-			if (this.maze[step[1]][step[0]] == 3 && visited[step[1]][step[0]] == false) {
+			long bit = this.bitIndex(step[0], step[1]);
+			if (Maze.getBit(this.routes, bit) && Maze.getBit(visited, bit) == false) {
 				// Increase score for correct move
 				score++;
 				// Remove reward
-				visited[step[1]][step[0]] = true;
+				Maze.setBit(visited, bit);
 			}
 		}
 
@@ -0,0 +1,267 @@
+package chapter3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Reads and writes mazes, in either of two formats.
+ * 
+ * The binary format is meant for big mazes. It's a 32 byte header followed by
+ * the maze's wall, route and goal bit planes, exactly as Maze keeps them in
+ * memory, all little-endian:
+ * 
+ * offset 0: the bytes "MAZE"
+ * offset 4: int format version, currently 1
+ * offset 8: int width
+ * offset 12: int height
+ * offset 16: int start x
+ * offset 20: int start y
+ * offset 24: 8 reserved bytes, written as 0
+ * offset 32: the wall plane, then the route plane, then the goal plane
+ * 
+ * Loading is just a matter of mapping the file with FileChannel.map and
+ * copying the planes straight into the maze's arrays; there's nothing to
+ * parse. Writing streams the planes out through a small buffer.
+ * 
+ * The text format is meant for small mazes made by hand. Each line is a row of
+ * the maze, with one digit per cell using the same values as the int[][]
+ * given to Maze (0 empty, 1 wall, 2 start, 3 route, 4 goal). Anything other
+ * than a digit is ignored, so spaces and commas can be used to line things up,
+ * and everything after a '#' is a comment. Blank lines are skipped.
+ */
+public class MazeFile {
+	private static final int MAGIC = 0x455A414D;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+
+	/**
+	 * The most we map or buffer at once. A single mapping can't be bigger
+	 * than 2GB, so big planes are read in pieces.
+	 */
+	private static final int MAX_MAP_BYTES = 1 << 30;
+	private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * Read a maze from a file in either format. Files that start with "MAZE"
+	 * are binary; anything else is read as text.
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return Maze The maze
+	 * @throws IOException
+	 *             If the file can't be read or isn't a valid maze
+	 */
+	public static Maze read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				// Keep reading until we have all four bytes or hit the end
+			}
+			if (magic.hasRemaining() == false && magic.getInt(0) == MAGIC) {
+				return MazeFile.readBinary(channel, path);
+			}
+		}
+		return MazeFile.readText(path);
+	}
+
+	/**
+	 * Read a maze from a binary maze file
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return Maze The maze
+	 * @throws IOException
+	 *             If the file can't be read or isn't a valid binary maze
+	 */
+	public static Maze readBinary(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return MazeFile.readBinary(channel, path);
+		}
+	}
+
+	private static Maze readBinary(FileChannel channel, Path path) throws IOException {
+		if (channel.size() < HEADER_BYTES) {
+			throw new IOException(path + ": too short to be a maze file");
+		}
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException(path + ": not a binary maze file");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException(path + ": unsupported maze file version " + header.getInt(4));
+		}
+		int width = header.getInt(8);
+		int height = header.getInt(12);
+		int startX = header.getInt(16);
+		int startY = header.getInt(20);
+		if (width < 1 || height < 1 || (long) (height + 2) * Maze.rowWords(width) > Integer.MAX_VALUE) {
+			throw new IOException(path + ": bad maze size " + width + "x" + height);
+		}
+		if (startX < 0 || startY < 0 || startX >= width || startY >= height) {
+			throw new IOException(path + ": start position " + startX + "," + startY + " is outside the maze");
+		}
+
+		int planeWords = Maze.planeWords(width, height);
+		long planeBytes = (long) planeWords * 8;
+		if (channel.size() != HEADER_BYTES + (planeBytes * 3)) {
+			throw new IOException(path + ": expected " + (HEADER_BYTES + (planeBytes * 3)) + " bytes for a "
+					+ width + "x" + height + " maze, found " + channel.size());
+		}
+
+		long walls[] = MazeFile.readPlane(channel, HEADER_BYTES, planeWords);
+		long routes[] = MazeFile.readPlane(channel, HEADER_BYTES + planeBytes, planeWords);
+		long goals[] = MazeFile.readPlane(channel, HEADER_BYTES + (planeBytes * 2), planeWords);
+		return new Maze(width, height, walls, routes, goals, startX, startY);
+	}
+
+	/**
+	 * Copy one bit plane out of the file, mapping it a piece at a time
+	 */
+	private static long[] readPlane(FileChannel channel, long position, int planeWords) throws IOException {
+		long plane[] = new long[planeWords];
+		int word = 0;
+		while (word < planeWords) {
+			int count = Math.min(planeWords - word, MAX_MAP_BYTES / 8);
+			LongBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + ((long) word * 8), count * 8L)
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+			buffer.get(plane, word, count);
+			word += count;
+		}
+		return plane;
+	}
+
+	/**
+	 * Write a maze to a binary maze file, replacing the file if it exists
+	 * 
+	 * @param maze
+	 *            The maze to write
+	 * @param path
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void writeBinary(Maze maze, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(maze.getMaxX() + 1);
+			header.putInt(maze.getMaxY() + 1);
+			header.putInt(maze.getStartPosition()[0]);
+			header.putInt(maze.getStartPosition()[1]);
+			header.putLong(0);
+			header.flip();
+			MazeFile.writeFully(channel, header);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			MazeFile.writePlane(channel, buffer, maze.getWallPlane());
+			MazeFile.writePlane(channel, buffer, maze.getRoutePlane());
+			MazeFile.writePlane(channel, buffer, maze.getGoalPlane());
+		}
+	}
+
+	private static void writePlane(FileChannel channel, ByteBuffer buffer, long plane[]) throws IOException {
+		int word = 0;
+		while (word < plane.length) {
+			int count = Math.min(plane.length - word, buffer.capacity() / 8);
+			buffer.clear();
+			buffer.asLongBuffer().put(plane, word, count);
+			buffer.limit(count * 8);
+			MazeFile.writeFully(channel, buffer);
+			word += count;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Read a maze from a text maze file
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return Maze The maze
+	 * @throws IOException
+	 *             If the file can't be read or isn't a valid text maze
+	 */
+	public static Maze readText(Path path) throws IOException {
+		ArrayList<int[]> rows = new ArrayList<int[]>();
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				int comment = line.indexOf('#');
+				if (comment >= 0) {
+					line = line.substring(0, comment);
+				}
+
+				int row[] = new int[line.length()];
+				int width = 0;
+				for (int i = 0; i < line.length(); i++) {
+					char c = line.charAt(i);
+					if (c >= '0' && c <= '9') {
+						if (c > '4') {
+							throw new IOException(path + ":" + lineNumber + ": unknown cell value " + c);
+						}
+						row[width++] = c - '0';
+					}
+				}
+				if (width == 0) {
+					continue;
+				}
+				if (rows.isEmpty() == false && width != rows.get(0).length) {
+					throw new IOException(path + ":" + lineNumber + ": row has " + width + " cells, expected "
+							+ rows.get(0).length);
+				}
+				int cells[] = new int[width];
+				System.arraycopy(row, 0, cells, 0, width);
+				rows.add(cells);
+			}
+		}
+
+		if (rows.isEmpty()) {
+			throw new IOException(path + ": no maze rows found");
+		}
+		return new Maze(rows.toArray(new int[rows.size()][]));
+	}
+
+	/**
+	 * Write a maze to a text maze file, replacing the file if it exists
+	 * 
+	 * @param maze
+	 *            The maze to write
+	 * @param path
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void writeText(Maze maze, Path path) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			for (int y = 0; y <= maze.getMaxY(); y++) {
+				for (int x = 0; x <= maze.getMaxX(); x++) {
+					if (x > 0) {
+						writer.write(' ');
+					}
+					writer.write((char) ('0' + maze.getPositionValue(x, y)));
+				}
+				writer.newLine();
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package chapter3;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Generates random mazes of any size, reproducibly from a seed.
+ * 
+ * The maze is carved with a "recursive backtracker": a depth-first walk from
+ * the start that knocks down the wall into a random unvisited neighbour, and
+ * backs up whenever it gets stuck. Rooms sit on every other row and column,
+ * with the walls between them in the rows and columns in between, so the
+ * result is a "perfect" maze: every room can be reached from the start by
+ * exactly one path.
+ * 
+ * The start is the top-left corner, and the goal is the room the walk reached
+ * at its deepest, which tends to be one of the furthest rooms from the start.
+ * The path from the start to the goal is the route, as in the book's maze, but
+ * the reward density decides what fraction of the cells along it are actually
+ * marked as route and worth a point. Optionally, some extra walls can be
+ * knocked down to add loops, which makes the maze harder for a robot that
+ * only ever follows one wall.
+ * 
+ * The maze is built directly as bit planes, with the path back to the start
+ * kept as two bits of direction per room, so mazes with hundreds of millions
+ * of cells can be generated without an int per cell. The one exception is
+ * the walk's stack of room numbers, which holds the rooms on the current path
+ * and so can grow to an int per room (a quarter of the cells) in a maze with
+ * one long path.
+ */
+public class MazeGenerator {
+	private final long seed;
+	private RandomSource random;
+	private double rewardDensity = 1;
+	private double loopFraction = 0;
+
+	/**
+	 * Create a generator
+	 * 
+	 * @param seed
+	 *            The seed; the same seed and settings always give the same maze
+	 */
+	public MazeGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the fraction of cells along the path from the start to the goal that
+	 * are worth a point. The default is 1, which rewards the whole path.
+	 * 
+	 * @param rewardDensity
+	 *            A fraction from 0 to 1
+	 */
+	public void setRewardDensity(double rewardDensity) {
+		this.rewardDensity = Math.max(0, Math.min(1, rewardDensity));
+	}
+
+	/**
+	 * Set the fraction of the walls between rooms that are knocked down after
+	 * the maze is carved, to add loops. The default is 0, for a perfect maze.
+	 * 
+	 * @param loopFraction
+	 *            A fraction from 0 to 1
+	 */
+	public void setLoopFraction(double loopFraction) {
+		this.loopFraction = Math.max(0, Math.min(1, loopFraction));
+	}
+
+	/**
+	 * Generate a maze
+	 * 
+	 * @param width
+	 *            The width of the maze
+	 * @param height
+	 *            The height of the maze
+	 * @return Maze The new maze
+	 */
+	public Maze generate(int width, int height) {
+		// The bit planes have to fit in arrays, and room numbers in ints
+		long planeWords = ((long) height + 2) * (((long) width + 2 + 63) >>> 6);
+		long rooms = (((long) width + 1) / 2) * (((long) height + 1) / 2);
+		if (width < 1 || height < 1 || planeWords > Integer.MAX_VALUE || rooms > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Can't generate a " + width + "x" + height + " maze");
+		}
+
+		this.random = new RandomSource(this.seed);
+		int rowWords = Maze.rowWords(width);
+		long walls[] = new long[Maze.planeWords(width, height)];
+		long routes[] = new long[walls.length];
+		long goals[] = new long[walls.length];
+
+		// Start with solid wall everywhere
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				Maze.setBit(walls, Maze.bitIndex(rowWords, x, y));
+			}
+		}
+
+		// Rooms are the cells with even coordinates
+		int roomsX = (width + 1) / 2;
+		int roomsY = (height + 1) / 2;
+		long parents[] = new long[(int) (((long) roomsX * roomsY * 2 + 63) >>> 6)];
+		int goal = this.carve(walls, rowWords, roomsX, roomsY, parents);
+		this.addLoops(walls, rowWords, width, height);
+
+		// Walk back from the goal to the start, rewarding cells along the way
+		int room = goal;
+		Maze.setBit(goals, Maze.bitIndex(rowWords, (room % roomsX) * 2, (room / roomsX) * 2));
+		while (room != 0) {
+			int direction = (int) (parents[(int) (((long) room * 2) >>> 6)] >>> (room * 2)) & 3;
+			int x = (room % roomsX) * 2;
+			int y = (room / roomsX) * 2;
+			int stepX = MazeGenerator.stepX(direction);
+			int stepY = MazeGenerator.stepY(direction);
+			if (room != goal) {
+				this.reward(routes, rowWords, x, y);
+			}
+			this.reward(routes, rowWords, x + stepX, y + stepY);
+			room = ((y / 2) + stepY) * roomsX + (x / 2) + stepX;
+		}
+
+		return new Maze(width, height, walls, routes, goals, 0, 0);
+	}
+
+	/**
+	 * Carve passages with a depth-first walk from the top-left room
+	 * 
+	 * @param parents
+	 *            Receives the direction from each room back towards the
+	 *            start, two bits per room
+	 * @return The room the walk reached at its deepest
+	 */
+	private int carve(long walls[], int rowWords, int roomsX, int roomsY, long parents[]) {
+		int stack[] = new int[64];
+		int depth = 0;
+		int deepest = 0;
+		int maxDepth = 0;
+		int candidates[] = new int[4];
+
+		Maze.clearBit(walls, Maze.bitIndex(rowWords, 0, 0));
+		stack[depth++] = 0;
+		while (depth > 0) {
+			int room = stack[depth - 1];
+			int roomX = room % roomsX;
+			int roomY = room / roomsX;
+
+			// Find the neighbouring rooms we haven't been to yet
+			int count = 0;
+			for (int direction = Maze.NORTH; direction <= Maze.WEST; direction++) {
+				int nextX = roomX + MazeGenerator.stepX(direction);
+				int nextY = roomY + MazeGenerator.stepY(direction);
+				if (nextX >= 0 && nextY >= 0 && nextX < roomsX && nextY < roomsY
+						&& Maze.getBit(walls, Maze.bitIndex(rowWords, nextX * 2, nextY * 2))) {
+					candidates[count++] = direction;
+				}
+			}
+			if (count == 0) {
+				depth--;
+				continue;
+			}
+
+			// Knock through to one of them at random
+			int direction = candidates[this.random.nextInt(count)];
+			int nextX = roomX + MazeGenerator.stepX(direction);
+			int nextY = roomY + MazeGenerator.stepY(direction);
+			Maze.clearBit(walls, Maze.bitIndex(rowWords, roomX + nextX, roomY + nextY));
+			Maze.clearBit(walls, Maze.bitIndex(rowWords, nextX * 2, nextY * 2));
+
+			int next = (nextY * roomsX) + nextX;
+			long back = (direction + 2) & 3;
+			parents[(int) (((long) next * 2) >>> 6)] |= back << (next * 2);
+
+			if (depth == stack.length) {
+				int grown[] = new int[(int) Math.min((long) stack.length * 2, (long) roomsX * roomsY)];
+				System.arraycopy(stack, 0, grown, 0, depth);
+				stack = grown;
+			}
+			stack[depth++] = next;
+			if (depth > maxDepth) {
+				maxDepth = depth;
+				deepest = next;
+			}
+		}
+		return deepest;
+	}
+
+	/**
+	 * Knock down a random selection of the walls that separate two rooms
+	 */
+	private void addLoops(long walls[], int rowWords, int width, int height) {
+		if (this.loopFraction == 0) {
+			return;
+		}
+		for (int y = 0; y < height; y++) {
+			// Walls between rooms have exactly one odd coordinate
+			for (int x = (y + 1) & 1; x < width; x += 2) {
+				boolean between = (y & 1) == 0 ? x + 1 < width : y + 1 < height;
+				long bit = Maze.bitIndex(rowWords, x, y);
+				if (between && Maze.getBit(walls, bit) && this.random.nextDouble() < this.loopFraction) {
+					Maze.clearBit(walls, bit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark a path cell as route, if it's chosen for a reward
+	 */
+	private void reward(long routes[], int rowWords, int x, int y) {
+		if (this.rewardDensity >= 1 || this.random.nextDouble() < this.rewardDensity) {
+			Maze.setBit(routes, Maze.bitIndex(rowWords, x, y));
+		}
+	}
+
+	private static int stepX(int direction) {
+		return direction == Maze.EAST ? 1 : direction == Maze.WEST ? -1 : 0;
+	}
+
+	private static int stepY(int direction) {
+		return direction == Maze.SOUTH ? 1 : direction == Maze.NORTH ? -1 : 0;
+	}
+
+	/**
+	 * Generate a maze and save it, for benchmarking on big mazes
+	 * 
+	 * Usage: MazeGenerator width height seed file [rewardDensity [loopFraction]]
+	 * 
+	 * Files ending in .txt are written as text, anything else as binary.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.out.println("Usage: MazeGenerator width height seed file [rewardDensity [loopFraction]]");
+			return;
+		}
+
+		MazeGenerator generator = new MazeGenerator(Long.parseLong(args[2]));
+		if (args.length > 4) {
+			generator.setRewardDensity(Double.parseDouble(args[4]));
+		}
+		if (args.length > 5) {
+			generator.setLoopFraction(Double.parseDouble(args[5]));
+		}
+		Maze maze = generator.generate(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+
+		if (args[3].endsWith(".txt")) {
+			MazeFile.writeText(maze, Paths.get(args[3]));
+		} else {
+			MazeFile.writeBinary(maze, Paths.get(args[3]));
+		}
+		System.out.println("Wrote " + args[0] + "x" + args[1] + " maze with " + maze.getRouteCount()
+				+ " route cells to " + args[3]);
+	}
+}
@@ -0,0 +1,74 @@
+package chapter3;
+
+import java.util.ArrayList;
+
+/**
+ * A collection of mazes to evaluate robot controllers against.
+ * 
+ * A controller that's only ever scored on one maze tends to learn that maze
+ * rather than how to follow a route in general. Scoring it on a whole suite of
+ * mazes, with MultiMazeEvaluator, rewards controllers that do well everywhere.
+ * 
+ * Each maze has a weight, which only matters when the evaluator's aggregation
+ * is a weighted sum.
+ */
+public class MazeSuite {
+	private final ArrayList<Maze> mazes = new ArrayList<Maze>();
+	private final ArrayList<Double> weights = new ArrayList<Double>();
+
+	/**
+	 * Add a maze with a weight of 1
+	 * 
+	 * @param maze
+	 *            The maze to add
+	 * @return This suite
+	 */
+	public MazeSuite add(Maze maze) {
+		return this.add(maze, 1);
+	}
+
+	/**
+	 * Add a maze
+	 * 
+	 * @param maze
+	 *            The maze to add
+	 * @param weight
+	 *            How much the maze's score counts in a weighted sum; must
+	 *            not be negative
+	 * @return This suite
+	 */
+	public MazeSuite add(Maze maze, double weight) {
+		this.mazes.add(maze);
+		this.weights.add(weight);
+		return this;
+	}
+
+	/**
+	 * Get the number of mazes in the suite
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return this.mazes.size();
+	}
+
+	/**
+	 * Get a maze
+	 * 
+	 * @param index
+	 * @return maze
+	 */
+	public Maze getMaze(int index) {
+		return this.mazes.get(index);
+	}
+
+	/**
+	 * Get the weight of a maze
+	 * 
+	 * @param index
+	 * @return weight
+	 */
+	public double getWeight(int index) {
+		return this.weights.get(index);
+	}
+}
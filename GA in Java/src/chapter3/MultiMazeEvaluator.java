@@ -0,0 +1,394 @@
+package chapter3;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Scores a robot controller against every maze in a MazeSuite, and combines
+ * the scores into one fitness value.
+ * 
+ * The mazes are independent of each other, so they're simulated in parallel:
+ * the suite is split into chunks of a few mazes each, and the chunks run as
+ * fork/join tasks. Each thread keeps its own robot for every maze and resets
+ * it for each controller, and the thread that calls evaluate keeps the score
+ * buffer and bound it uses, so evaluation doesn't allocate them. Only the
+ * fork/join tasks themselves are new for each controller, and not even those
+ * when the suite is small enough to simulate on the calling thread.
+ * 
+ * When all we want to know is whether a controller can beat some fitness (for
+ * example, the current winner of a tournament), evaluate can also be given a
+ * threshold. A robot can't score more than the number of route cells in its
+ * maze, so after every maze we know the best fitness the controller could
+ * still reach; once that's no better than the threshold, the remaining mazes
+ * are skipped.
+ * 
+ * The abort is only for callers that use the evaluator directly, such as a
+ * selection scheme that only needs to know whether a challenger beats the
+ * winner so far. The GeneticAlgorithm needs every individual's exact fitness,
+ * for elitism, the population fitness and the fitness cache, so it never
+ * passes a threshold.
+ */
+public class MultiMazeEvaluator {
+
+	/**
+	 * How to combine the scores from each maze into a fitness value
+	 */
+	public enum Aggregation {
+		/**
+		 * The average score
+		 */
+		MEAN,
+
+		/**
+		 * The worst score, which rewards controllers that never get lost
+		 */
+		MIN,
+
+		/**
+		 * The sum of each score multiplied by its maze's weight
+		 */
+		WEIGHTED_SUM
+	}
+
+	private final Maze mazes[];
+	private final double weights[];
+	private final Aggregation aggregation;
+	private final int maxMoves;
+	private final ForkJoinPool pool;
+
+	/**
+	 * How many mazes a single fork/join task simulates. Simulating one maze is
+	 * quick, so handing every maze to its own task would mostly measure the
+	 * cost of forking.
+	 */
+	private int mazesPerTask = 4;
+
+	/**
+	 * Each thread's robots, one per maze
+	 */
+	private final ThreadLocal<Robot[]> robots = new ThreadLocal<Robot[]>();
+
+	/**
+	 * Each calling thread's score buffer and bound
+	 */
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
+
+	private final AtomicLong evaluations = new AtomicLong();
+	private final AtomicLong abortedEvaluations = new AtomicLong();
+
+	/**
+	 * Create an evaluator that runs on the common fork/join pool
+	 * 
+	 * @param suite
+	 *            The mazes to evaluate against. Later changes to the suite
+	 *            don't affect the evaluator.
+	 * @param aggregation
+	 *            How to combine the scores
+	 * @param maxMoves
+	 *            The maximum number of moves a robot can make in each maze
+	 */
+	public MultiMazeEvaluator(MazeSuite suite, Aggregation aggregation, int maxMoves) {
+		this(suite, aggregation, maxMoves, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create an evaluator
+	 * 
+	 * @param suite
+	 *            The mazes to evaluate against. Later changes to the suite
+	 *            don't affect the evaluator.
+	 * @param aggregation
+	 *            How to combine the scores
+	 * @param maxMoves
+	 *            The maximum number of moves a robot can make in each maze
+	 * @param pool
+	 *            The pool to simulate mazes on
+	 */
+	public MultiMazeEvaluator(MazeSuite suite, Aggregation aggregation, int maxMoves, ForkJoinPool pool) {
+		this.mazes = new Maze[suite.size()];
+		this.weights = new double[suite.size()];
+		for (int i = 0; i < this.mazes.length; i++) {
+			this.mazes[i] = suite.getMaze(i);
+			this.weights[i] = suite.getWeight(i);
+		}
+		this.aggregation = aggregation;
+		this.maxMoves = maxMoves;
+		this.pool = pool;
+	}
+
+	/**
+	 * Set how many mazes each fork/join task simulates. A suite with no more
+	 * mazes than this is simulated on the calling thread.
+	 * 
+	 * @param mazesPerTask
+	 */
+	public void setMazesPerTask(int mazesPerTask) {
+		this.mazesPerTask = Math.max(1, mazesPerTask);
+	}
+
+	/**
+	 * Score a controller against every maze
+	 * 
+	 * @param individual
+	 *            The controller
+	 * @return The aggregated score
+	 */
+	public double evaluate(Individual individual) {
+		return this.evaluate(individual, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Score a controller against every maze, unless it turns out that it
+	 * can't score more than a threshold
+	 * 
+	 * @param individual
+	 *            The controller
+	 * @param threshold
+	 *            The fitness the controller has to beat
+	 * @return The aggregated score if it's more than the threshold. Otherwise,
+	 *         some value no more than the threshold: if the evaluation was cut
+	 *         short, it's the best score the controller could have got.
+	 */
+	public double evaluate(Individual individual, double threshold) {
+		this.evaluations.incrementAndGet();
+
+		Scratch scratch = this.scratch.get();
+		if (scratch == null) {
+			scratch = new Scratch(this.mazes.length);
+			this.scratch.set(scratch);
+		} else if (scratch.inUse) {
+			// A fork/join worker waiting on its own evaluation can pick up
+			// another one, which mustn't share its buffers
+			scratch = new Scratch(this.mazes.length);
+		}
+		scratch.inUse = true;
+
+		try {
+			// Until a maze has been simulated, assume the best possible score
+			double scores[] = scratch.scores;
+			for (int i = 0; i < scores.length; i++) {
+				scores[i] = this.mazes[i].getRouteCount();
+			}
+
+			Bound bound = scratch.bound;
+			bound.reset(threshold, this.aggregate(scores));
+			if (bound.aborted == false) {
+				// Decode the controller before forking, so the tasks only read it
+				individual.getSensorActions();
+				if (this.mazes.length <= this.mazesPerTask) {
+					this.simulate(individual, 0, this.mazes.length, scores, bound);
+				} else {
+					this.pool.invoke(new MazeTask(individual, 0, this.mazes.length, scores, bound));
+				}
+			}
+
+			if (bound.aborted) {
+				this.abortedEvaluations.incrementAndGet();
+			}
+			return this.aggregate(scores);
+		} finally {
+			scratch.inUse = false;
+		}
+	}
+
+	/**
+	 * Combine per-maze scores
+	 * 
+	 * @param scores
+	 * @return The aggregated score
+	 */
+	private double aggregate(double scores[]) {
+		if (this.aggregation == Aggregation.MIN) {
+			double min = Double.POSITIVE_INFINITY;
+			for (double score : scores) {
+				min = Math.min(min, score);
+			}
+			return min;
+		}
+
+		double total = 0;
+		for (int i = 0; i < scores.length; i++) {
+			total += this.aggregation == Aggregation.WEIGHTED_SUM ? scores[i] * this.weights[i] : scores[i];
+		}
+		return this.aggregation == Aggregation.MEAN ? total / scores.length : total;
+	}
+
+	/**
+	 * Run a controller through a range of mazes on this thread, stopping early
+	 * if the bound says it can't beat its threshold
+	 */
+	private void simulate(Individual individual, int from, int to, double scores[], Bound bound) {
+		for (int mazeIndex = from; mazeIndex < to; mazeIndex++) {
+			if (bound.aborted) {
+				return;
+			}
+			int score = this.simulate(mazeIndex, individual);
+			scores[mazeIndex] = score;
+			bound.record(mazeIndex, score);
+		}
+	}
+
+	/**
+	 * Run a controller through one maze on this thread
+	 */
+	private int simulate(int mazeIndex, Individual individual) {
+		Robot threadRobots[] = this.robots.get();
+		if (threadRobots == null) {
+			threadRobots = new Robot[this.mazes.length];
+			this.robots.set(threadRobots);
+		}
+		Robot robot = threadRobots[mazeIndex];
+		if (robot == null) {
+			robot = new Robot(this.mazes[mazeIndex], this.maxMoves);
+			threadRobots[mazeIndex] = robot;
+		}
+
+		robot.reset(individual);
+		robot.run();
+		return robot.getScore();
+	}
+
+	/**
+	 * Get the genes of a controller chromosome that can affect its score in
+	 * any maze of the suite
+	 * 
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 * @return long[] The gene mask, as for Maze.getReachableGeneMask
+	 */
+	public long[] getReachableGeneMask(int chromosomeLength) {
+		long sensorMask = 0;
+		for (Maze maze : this.mazes) {
+			sensorMask |= maze.getReachableSensorMask();
+		}
+		return Maze.geneMask(sensorMask, chromosomeLength);
+	}
+
+	/**
+	 * @return The number of controllers evaluated
+	 */
+	public long getEvaluationCount() {
+		return this.evaluations.get();
+	}
+
+	/**
+	 * @return The number of evaluations cut short by their threshold
+	 */
+	public long getAbortedCount() {
+		return this.abortedEvaluations.get();
+	}
+
+	/**
+	 * @return The number of mazes in the suite
+	 */
+	public int getMazeCount() {
+		return this.mazes.length;
+	}
+
+	/**
+	 * Tracks the best aggregate score a controller can still reach while its
+	 * mazes are being simulated, and whether that's fallen to the threshold
+	 */
+	private final class Bound {
+		private double threshold;
+
+		/**
+		 * For MEAN and WEIGHTED_SUM: the best possible aggregate before any
+		 * maze was simulated, and how much of it has since been lost
+		 */
+		private double best;
+		private final DoubleAdder lost = new DoubleAdder();
+
+		private volatile boolean aborted;
+
+		/**
+		 * Start tracking a new controller. The tasks that read the bound are
+		 * forked after this, which publishes it to them.
+		 */
+		void reset(double threshold, double best) {
+			this.threshold = threshold;
+			this.best = best;
+			this.lost.reset();
+			this.aborted = best <= threshold;
+		}
+
+		/**
+		 * Account for a maze that's been simulated
+		 */
+		void record(int mazeIndex, int score) {
+			if (this.threshold == Double.NEGATIVE_INFINITY) {
+				return;
+			}
+
+			Aggregation aggregation = MultiMazeEvaluator.this.aggregation;
+			if (aggregation == Aggregation.MIN) {
+				// The minimum can't be more than this score
+				if (score <= this.threshold) {
+					this.aborted = true;
+				}
+				return;
+			}
+
+			double shortfall = MultiMazeEvaluator.this.mazes[mazeIndex].getRouteCount() - score;
+			if (aggregation == Aggregation.WEIGHTED_SUM) {
+				shortfall *= MultiMazeEvaluator.this.weights[mazeIndex];
+			} else {
+				shortfall /= MultiMazeEvaluator.this.mazes.length;
+			}
+			this.lost.add(shortfall);
+			if (this.best - this.lost.sum() <= this.threshold) {
+				this.aborted = true;
+			}
+		}
+	}
+
+	/**
+	 * A calling thread's score buffer and bound, and whether an evaluation on
+	 * that thread is using them
+	 */
+	private final class Scratch {
+		final double scores[];
+		final Bound bound = new Bound();
+		boolean inUse;
+
+		Scratch(int mazeCount) {
+			this.scores = new double[mazeCount];
+		}
+	}
+
+	/**
+	 * Simulates a range of mazes, splitting it in half until the pieces are
+	 * small enough
+	 */
+	private final class MazeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Individual individual;
+		private final int from;
+		private final int to;
+		private final double scores[];
+		private final Bound bound;
+
+		MazeTask(Individual individual, int from, int to, double scores[], Bound bound) {
+			this.individual = individual;
+			this.from = from;
+			this.to = to;
+			this.scores = scores;
+			this.bound = bound;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= MultiMazeEvaluator.this.mazesPerTask) {
+				MultiMazeEvaluator.this.simulate(this.individual, this.from, this.to, this.scores, this.bound);
+				return;
+			}
+
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new MazeTask(this.individual, this.from, middle, this.scores, this.bound),
+					new MazeTask(this.individual, middle, this.to, this.scores, this.bound));
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package chapter3;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A robot abstraction. Give it a maze and an instruction set, and it will
@@ -17,29 +18,198 @@ public class Robot {
     int maxMoves;
     int moves;
     private int sensorVal;
-    private final int sensorActions[];
+    private int sensorActions[];
+    private int decodedActions[];
     private Maze maze;
     private ArrayList<int[]> route;
+
+    /**
+     * The robot scores as it goes, earning a point the first time it enters
+     * each route cell (value 3). Route cells it has visited are marked in a
+     * bitset with one bit per maze position, at index (y * width) + x, and the
+     * cells it marked are listed so that the next run only has to clear those
+     * bits. Cell indices are longs, since a big maze can have more than 2^31
+     * cells.
+     */
+    private int score;
+    private final int mazeWidth;
+    private final long visited[];
+    private long visitedCells[];
+    private int visitedCount;
+
+    /**
+     * The states (position and heading) the robot has been in this run, and
+     * its score the last time it was in each one.
+     * 
+     * The robot's next action depends only on its state, so once it comes back
+     * to a state it will go round the same loop forever. If it hasn't scored
+     * anything since it was last in the state, it never will again, so we can
+     * stop the run early.
+     * 
+     * This is an open-addressing hash table keyed on the state index
+     * ((y * width) + x) * 4 + heading. An entry is only valid if its stamp
+     * matches this run's stamp, so clearing the table between runs just means
+     * moving on to a new stamp.
+     */
+    private long stateKeys[];
+    private int stateScores[];
+    private int stateStamps[];
+    private int stateCount;
+    private int stamp = 0;
+
+    /**
+     * Whether to record every position the robot visits. The route is only
+     * needed for printing and debugging; the score doesn't depend on it.
+     */
+    private boolean recordRoute = false;
     
     /**
      * Initalize a robot with controller
      * 
+     * This robot records its route, so that getRoute and printRoute work.
+     * 
      * @param sensorActions The string to map the sensor value to actions
      * @param maze The maze the robot will use
      * @param maxMoves The maximum number of moves the robot can make
      */
     public Robot(int[] sensorActions, Maze maze, int maxMoves){
+        this(maze, maxMoves);
         this.sensorActions = this.calcSensorActions(sensorActions);
+        this.recordRoute = true;
+        this.restart();
+    }
+
+    /**
+     * Initialize a robot without a controller
+     * 
+     * Give the robot a controller with one of the reset methods before each
+     * run. Reusing one robot like this means that evaluating a controller
+     * doesn't allocate anything. The robot doesn't record its route unless
+     * setRecordRoute is used to turn that on.
+     * 
+     * @param maze The maze the robot will use
+     * @param maxMoves The maximum number of moves the robot can make
+     */
+    public Robot(Maze maze, int maxMoves){
         this.maze = maze;
+        this.maxMoves = maxMoves;
+        this.mazeWidth = maze.getMaxX() + 1;
+        long cells = (long) this.mazeWidth * (maze.getMaxY() + 1);
+        if ((cells + 63) >>> 6 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A robot can't track a maze of " + cells + " cells");
+        }
+        this.visited = new long[(int) ((cells + 63) >>> 6)];
+        this.visitedCells = new long[(int) Math.min(cells, 64)];
+        this.allocateStates(Math.max(maxMoves, 16));
+        this.restart();
+    }
+
+    /**
+     * Give the robot a new controller, and put it back at the start of the
+     * maze ready to run again
+     * 
+     * @param sensorActions The string to map the sensor value to actions
+     */
+    public void reset(int[] sensorActions){
+        this.sensorActions = this.calcSensorActions(sensorActions);
+        this.restart();
+    }
+
+    /**
+     * Give the robot a new controller straight from a packed chromosome, and
+     * put it back at the start of the maze ready to run again
+     * 
+     * @param packedSensorActions The packed chromosome
+     * @param chromosomeLength The number of genes in the chromosome
+     */
+    public void reset(long[] packedSensorActions, int chromosomeLength){
+        int numActions = chromosomeLength / 2;
+        if (this.decodedActions == null || this.decodedActions.length != numActions) {
+            this.decodedActions = new int[numActions];
+        }
+        Robot.decodeSensorActions(packedSensorActions, numActions, this.decodedActions);
+        this.sensorActions = this.decodedActions;
+
+        this.restart();
+    }
+
+    /**
+     * Give the robot an individual's controller, and put it back at the start
+     * of the maze ready to run again
+     * 
+     * The individual keeps its chromosome decoded into actions until the
+     * chromosome changes, so the robot uses that table as it is.
+     * 
+     * @param individual The individual whose chromosome is the controller
+     */
+    public void reset(Individual individual){
+        this.sensorActions = individual.getSensorActions();
+        this.restart();
+    }
+
+    /**
+     * Decode a packed chromosome into the action for each sensor value
+     * 
+     * Gene i of the chromosome is bit (i % 64) of word (i / 64). Each action
+     * is a pair of genes with the first one as the high bit, and a pair never
+     * straddles two words, so we can read the actions without unpacking.
+     * 
+     * @param packedSensorActions The packed chromosome
+     * @param numActions The number of actions, ie, half the chromosome length
+     * @param sensorActions The array to decode the actions into
+     */
+    static void decodeSensorActions(long[] packedSensorActions, int numActions, int[] sensorActions){
+        for (int sensorValue = 0; sensorValue < numActions; sensorValue++) {
+            int gene = sensorValue * 2;
+            // Shifting by the gene index only uses its low 6 bits
+            long pair = packedSensorActions[gene >>> 6] >>> gene;
+            sensorActions[sensorValue] = (int) (((pair & 1L) << 1) | ((pair >>> 1) & 1L));
+        }
+    }
+
+    /**
+     * Put the robot back at the start of the maze, and forget the score and
+     * route of the last run
+     */
+    private void restart(){
         int startPos[] = this.maze.getStartPosition();
         this.xPosition = startPos[0];
         this.yPosition = startPos[1];
         this.sensorVal = -1;
         this.heading = Direction.EAST;
-        this.maxMoves = maxMoves;
         this.moves = 0;
-        this.route = new ArrayList<int[]>();
-        this.route.add(startPos);
+
+        // Clear only the bits that the last run set
+        for (int i = 0; i < this.visitedCount; i++) {
+            long cell = this.visitedCells[i];
+            this.visited[(int) (cell >>> 6)] &= ~(1L << cell);
+        }
+        this.visitedCount = 0;
+        this.score = 0;
+
+        // Forget the states of the last run
+        this.stamp++;
+        if (this.stamp == 0) {
+            Arrays.fill(this.stateStamps, 0);
+            this.stamp = 1;
+        }
+        this.stateCount = 0;
+
+        if (this.recordRoute) {
+            this.route = new ArrayList<int[]>();
+            this.route.add(startPos);
+        } else {
+            this.route = null;
+        }
+    }
+
+    /**
+     * Turn route recording on or off. This takes effect from the next reset.
+     * 
+     * @param recordRoute True to record every position the robot visits
+     */
+    public void setRecordRoute(boolean recordRoute){
+        this.recordRoute = recordRoute;
     }
     
     /**
@@ -55,7 +225,7 @@ public class Robot {
             }
 
             // Break if we reach the goal
-            if (this.maze.getPositionValue(this.xPosition, this.yPosition) == 4) {
+            if (this.maze.isGoal(this.xPosition, this.yPosition)) {
                 return;
             }
             
@@ -64,11 +234,98 @@ public class Robot {
                 return;
             }
 
+            // Break if we're going round in circles without scoring
+            if (this.isLooping()) {
+                return;
+            }
+
             // Run action
             this.makeNextAction();
         }
     }
     
+    /**
+     * Record the robot's current state, and check whether it's been here
+     * before with the same score
+     * 
+     * @return boolean True if the robot can't score any more
+     */
+    private boolean isLooping(){
+        long state = ((((long) this.yPosition * this.mazeWidth) + this.xPosition) * 4) + this.heading.ordinal();
+        int mask = this.stateKeys.length - 1;
+        int slot = Robot.stateSlot(state, mask);
+
+        // Probe for the state, stopping at the first slot not used this run
+        while (this.stateStamps[slot] == this.stamp) {
+            if (this.stateKeys[slot] == state) {
+                if (this.stateScores[slot] == this.score) {
+                    return true;
+                }
+                this.stateScores[slot] = this.score;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        this.stateKeys[slot] = state;
+        this.stateScores[slot] = this.score;
+        this.stateStamps[slot] = this.stamp;
+        this.stateCount++;
+
+        // Keep the table no more than half full
+        if (this.stateCount * 2 > this.stateKeys.length) {
+            this.growStates();
+        }
+        return false;
+    }
+
+    /**
+     * The slot in the state table to start probing from for a state
+     */
+    private static int stateSlot(long state, int mask){
+        return (int) ((state * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * Allocate an empty state table with room for at least the given number
+     * of states
+     */
+    private void allocateStates(int states){
+        int size = 2;
+        while (size < states * 2) {
+            size *= 2;
+        }
+        this.stateKeys = new long[size];
+        this.stateScores = new int[size];
+        this.stateStamps = new int[size];
+    }
+
+    /**
+     * Move this run's states into a table twice the size
+     */
+    private void growStates(){
+        long keys[] = this.stateKeys;
+        int scores[] = this.stateScores;
+        int stamps[] = this.stateStamps;
+        int currentStamp = this.stamp;
+
+        this.allocateStates(keys.length);
+        this.stamp = 1;
+        int mask = this.stateKeys.length - 1;
+        for (int i = 0; i < keys.length; i++) {
+            if (stamps[i] != currentStamp) {
+                continue;
+            }
+            int slot = Robot.stateSlot(keys[i], mask);
+            while (this.stateStamps[slot] == this.stamp) {
+                slot = (slot + 1) & mask;
+            }
+            this.stateKeys[slot] = keys[i];
+            this.stateScores[slot] = scores[i];
+            this.stateStamps[slot] = this.stamp;
+        }
+    }
+    
     /**
      * Map robot's sensor data to actions from binary string
      * 
@@ -140,7 +397,7 @@ public class Robot {
             } 
             else {
                 if(currentX != this.xPosition || currentY != this.yPosition) {
-                    this.route.add(this.getPosition());
+                    this.enterPosition();
                 }
             }
         }
@@ -179,6 +436,31 @@ public class Robot {
         this.sensorVal = -1;
     }
     
+    /**
+     * Score the position the robot has just moved to, and add it to the route
+     * if we're recording one
+     */
+    private void enterPosition(){
+        if (this.recordRoute) {
+            this.route.add(this.getPosition());
+        }
+
+        // Earn a point the first time we enter each route cell
+        if (this.maze.isRoute(this.xPosition, this.yPosition)) {
+            long cell = ((long) this.yPosition * this.mazeWidth) + this.xPosition;
+            long bit = 1L << cell;
+            int word = (int) (cell >>> 6);
+            if ((this.visited[word] & bit) == 0) {
+                this.visited[word] |= bit;
+                if (this.visitedCount == this.visitedCells.length) {
+                    this.visitedCells = Arrays.copyOf(this.visitedCells, this.visitedCount * 2);
+                }
+                this.visitedCells[this.visitedCount++] = cell;
+                this.score++;
+            }
+        }
+    }
+    
     /**
      * Get next action depending on sensor mapping
      * 
@@ -191,6 +473,9 @@ public class Robot {
     /**
      * Get sensor value
      * 
+     * The maze works out the sensor value for every position and heading up
+     * front. Direction's ordinal matches the maze's heading numbers.
+     * 
      * @return int Next sensor value
      */
     public int getSensorValue(){
@@ -198,69 +483,10 @@ public class Robot {
         if (this.sensorVal > -1) {
             return this.sensorVal;
         }
-                
-		boolean frontSensor, frontLeftSensor, frontRightSensor, leftSensor, rightSensor, backSensor;
-		frontSensor = frontLeftSensor = frontRightSensor = leftSensor = rightSensor = backSensor = false;
-
-        // Find which sensors have been activated
-        if (this.getHeading() == Direction.NORTH) {
-            frontSensor = this.maze.isWall(this.xPosition, this.yPosition-1);
-            frontLeftSensor = this.maze.isWall(this.xPosition-1, this.yPosition-1);
-            frontRightSensor = this.maze.isWall(this.xPosition+1, this.yPosition-1);
-            leftSensor = this.maze.isWall(this.xPosition-1, this.yPosition);
-            rightSensor = this.maze.isWall(this.xPosition+1, this.yPosition);
-            backSensor = this.maze.isWall(this.xPosition, this.yPosition+1);
-        }
-        else if (this.getHeading() == Direction.EAST) {
-            frontSensor = this.maze.isWall(this.xPosition+1, this.yPosition);
-            frontLeftSensor = this.maze.isWall(this.xPosition+1, this.yPosition-1);
-            frontRightSensor = this.maze.isWall(this.xPosition+1, this.yPosition+1);
-            leftSensor = this.maze.isWall(this.xPosition, this.yPosition-1);
-            rightSensor = this.maze.isWall(this.xPosition, this.yPosition+1);
-            backSensor = this.maze.isWall(this.xPosition-1, this.yPosition);
-        }
-        else if (this.getHeading() == Direction.SOUTH) {
-            frontSensor = this.maze.isWall(this.xPosition, this.yPosition+1);
-            frontLeftSensor = this.maze.isWall(this.xPosition+1, this.yPosition+1);
-            frontRightSensor = this.maze.isWall(this.xPosition-1, this.yPosition+1);
-            leftSensor = this.maze.isWall(this.xPosition+1, this.yPosition);
-            rightSensor = this.maze.isWall(this.xPosition-1, this.yPosition);
-            backSensor = this.maze.isWall(this.xPosition, this.yPosition-1);
-        }
-        else {
-            frontSensor = this.maze.isWall(this.xPosition-1, this.yPosition);
-            frontLeftSensor = this.maze.isWall(this.xPosition-1, this.yPosition+1);
-            frontRightSensor = this.maze.isWall(this.xPosition-1, this.yPosition-1);
-            leftSensor = this.maze.isWall(this.xPosition, this.yPosition+1);
-            rightSensor = this.maze.isWall(this.xPosition, this.yPosition-1);
-            backSensor = this.maze.isWall(this.xPosition+1, this.yPosition);
-        }
-                
-        // Calculate sensor value
-        int sensorVal = 0;
-        
-        if (frontSensor == true) {
-            sensorVal += 1;
-        }
-        if (frontLeftSensor == true) {
-            sensorVal += 2;
-        }
-        if (frontRightSensor == true) {
-            sensorVal += 4;
-        }
-        if (leftSensor == true) {
-            sensorVal += 8;
-        }
-        if (rightSensor == true) {
-            sensorVal += 16;
-        }
-        if (backSensor == true) {
-            sensorVal += 32;
-        }
 
-        this.sensorVal = sensorVal;
+        this.sensorVal = this.maze.getSensorValue(this.xPosition, this.yPosition, this.getHeading().ordinal());
 
-        return sensorVal;
+        return this.sensorVal;
     }
     
     /**
@@ -272,6 +498,15 @@ public class Robot {
         return new int[]{this.xPosition, this.yPosition};
     }
     
+    /**
+     * Get the maze the robot is navigating
+     * 
+     * @return Maze The robot's maze
+     */
+    public Maze getMaze(){
+        return this.maze;
+    }
+    
     /**
      * Get robot's heading
      * 
@@ -281,10 +516,21 @@ public class Robot {
         return this.heading;
     }
     
+    /**
+     * Get the robot's score so far: the number of different route cells it
+     * has visited. This is the same score that Maze.scoreRoute gives the
+     * robot's route.
+     * 
+     * @return int Score
+     */
+    public int getScore(){
+        return this.score;
+    }
+    
     /**
      * Returns robot's complete route around the maze
      * 
-     * @return ArrayList<int> Robot's route
+     * @return ArrayList<int> Robot's route, or null if it isn't being recorded
      */
     public ArrayList<int[]> getRoute(){       
         return this.route;
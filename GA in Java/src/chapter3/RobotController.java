@@ -1,5 +1,8 @@
 package chapter3;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 /**
  * The main executive class for the Robot Controller problem in chapter 3.
  * 
@@ -7,6 +10,9 @@ package chapter3;
  * `evalPopulation` method, which is then responsible for scoring an abstract
  * robot with sensors against the maze.
  * 
+ * To evolve a controller for a different maze, pass the path of a maze file
+ * (see MazeFile) as the first argument; MazeGenerator can make big ones.
+ * 
  * @author bkanber
  *
  */
@@ -19,7 +25,7 @@ public class RobotController {
 	 */
 	public static int maxGenerations = 1000;
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 
 		/**
 		 * Initialize a maze. We'll write this by hand, because, y'know, this
@@ -48,7 +54,7 @@ public class RobotController {
 		 * 4 = Goal position
 		 */
 
-		Maze maze = new Maze(new int[][] { 
+		Maze maze = args.length > 0 ? MazeFile.read(Paths.get(args[0])) : new Maze(new int[][] { 
 			{ 0, 0, 0, 0, 1, 0, 1, 3, 2 }, 
 			{ 1, 0, 1, 1, 1, 0, 1, 3, 1 },
 			{ 1, 0, 0, 1, 3, 3, 3, 3, 1 }, 
@@ -62,6 +68,9 @@ public class RobotController {
 
 		// Create genetic algorithm
 		GeneticAlgorithm ga = new GeneticAlgorithm(200, 0.05, 0.9, 2, 10);
+		// Remember the fitness of chromosomes we've already run through the maze
+		FitnessCache fitnessCache = new FitnessCache(1000);
+		ga.setFitnessCache(fitnessCache);
 		Population population = ga.initPopulation(128);
 		ga.evalPopulation(population, maze);
 		// Keep track of current generation
@@ -70,8 +79,8 @@ public class RobotController {
 		while (ga.isTerminationConditionMet(generation, maxGenerations) == false) {
 			// Print fittest individual from population
 			Individual fittest = population.getFittest(0);
-			System.out.println(
-					"G" + generation + " Best solution (" + fittest.getFitness() + "): " + fittest.toString());
+			System.out.println("G" + generation + " Best solution (" + fittest.getFitness() + "): "
+					+ fittest.toString() + " Skipped evaluations: " + ga.getLastSkippedCount());
 
 			// Apply crossover
 			population = ga.crossoverPopulation(population);
@@ -87,6 +96,9 @@ public class RobotController {
 		}
 
 		System.out.println("Stopped after " + maxGenerations + " generations.");
+		System.out.println("Evaluations: " + ga.getTotalEvaluatedCount() + " (" + ga.getTotalSkippedCount()
+				+ " skipped)");
+		System.out.println("Fitness cache: " + fitnessCache);
 		Individual fittest = population.getFittest(0);
 		System.out.println("Best solution (" + fittest.getFitness() + "): " + fittest.toString());
 		
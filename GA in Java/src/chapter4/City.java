@@ -34,12 +34,13 @@ public class City {
 	 * @return distance The distance from the given city
 	 */
 	public double distanceFrom(City city) {
-		// Give difference in x,y
-		double deltaXSq = Math.pow((city.getX() - this.getX()), 2);
-		double deltaYSq = Math.pow((city.getY() - this.getY()), 2);
+		// Give difference in x,y. Squaring by multiplying gives exactly the
+		// same result as Math.pow, without the call.
+		double deltaX = city.getX() - this.getX();
+		double deltaY = city.getY() - this.getY();
 
 		// Calculate shortest path
-		double distance = Math.sqrt(Math.abs(deltaXSq + deltaYSq));
+		double distance = Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
 		return distance;
 	}
 
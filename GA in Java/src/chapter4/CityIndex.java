@@ -0,0 +1,459 @@
+package chapter4;
+
+/**
+ * A k-d tree over the cities, for finding the cities near a point without
+ * looking at every city.
+ * 
+ * A distance matrix or an all-pairs neighbour search costs O(n^2), which is
+ * out of the question for 100,000 cities or more. The tree takes O(n log n) to
+ * build, and then answers a nearest-neighbour or radius query in roughly
+ * O(log n) plus the number of cities it returns, so the neighbour lists for
+ * local search and greedy construction can be built for every city in
+ * O(n log n).
+ * 
+ * The tree is implicit: it's an ordering of the city indices in which the
+ * middle entry of every range splits the rest of the range in two, along
+ * whichever axis the range is more spread out in. The only other thing stored
+ * is the axis of each split, so the tree costs five bytes per city on top of a
+ * copy of the coordinates.
+ * 
+ * Queries don't share any scratch space, so one index can be queried from many
+ * threads at once.
+ */
+public class CityIndex {
+	private static final byte X_AXIS = 0;
+	private static final byte Y_AXIS = 1;
+
+	private final double xs[];
+	private final double ys[];
+
+	/**
+	 * The city indices in tree order, and the axis each one splits its range
+	 * along
+	 */
+	private final int order[];
+	private final byte axes[];
+
+	/**
+	 * Build an index over the cities
+	 * 
+	 * @param cities
+	 *            The cities, which queries refer to by their index in this
+	 *            array
+	 */
+	public CityIndex(City cities[]) {
+		this(CityIndex.coordinates(cities, true), CityIndex.coordinates(cities, false));
+	}
+
+	/**
+	 * Build an index over cities given as coordinate arrays, such as those of
+	 * a TSPInstance
+	 * 
+	 * @param xs
+	 *            The cities' x positions, which the index keeps a copy of
+	 * @param ys
+	 *            The cities' y positions, which the index keeps a copy of
+	 */
+	public CityIndex(double xs[], double ys[]) {
+		if (xs.length != ys.length) {
+			throw new IllegalArgumentException(
+					"Got " + xs.length + " x positions but " + ys.length + " y positions");
+		}
+		int size = xs.length;
+		this.xs = xs.clone();
+		this.ys = ys.clone();
+		this.order = new int[size];
+		this.axes = new byte[size];
+		for (int city = 0; city < size; city++) {
+			this.order[city] = city;
+		}
+		this.build(0, size);
+	}
+
+	private static double[] coordinates(City cities[], boolean x) {
+		double coordinates[] = new double[cities.length];
+		for (int city = 0; city < cities.length; city++) {
+			coordinates[city] = x ? cities[city].getX() : cities[city].getY();
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Arrange order[low..high) so its middle entry splits it, and recurse into
+	 * both halves. The depth is only log2(n), so recursion is safe.
+	 */
+	private void build(int low, int high) {
+		if (high - low < 2) {
+			return;
+		}
+
+		// Split along the axis the cities are more spread out in
+		double minX = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = low; i < high; i++) {
+			int city = this.order[i];
+			minX = Math.min(minX, this.xs[city]);
+			maxX = Math.max(maxX, this.xs[city]);
+			minY = Math.min(minY, this.ys[city]);
+			maxY = Math.max(maxY, this.ys[city]);
+		}
+		byte axis = maxX - minX >= maxY - minY ? X_AXIS : Y_AXIS;
+		double coordinates[] = axis == X_AXIS ? this.xs : this.ys;
+
+		int middle = (low + high) >>> 1;
+		this.select(coordinates, low, high, middle);
+		this.axes[middle] = axis;
+		this.build(low, middle);
+		this.build(middle + 1, high);
+	}
+
+	/**
+	 * Partially sort order[low..high) so that the entry at target is the one
+	 * that would be there if it were fully sorted by coordinate, with nothing
+	 * greater before it and nothing smaller after it
+	 * 
+	 * This is Hoare's quickselect; its partitioning stops on entries equal to
+	 * the pivot, so lots of cities sharing a coordinate don't make it
+	 * quadratic.
+	 */
+	private void select(double coordinates[], int low, int high, int target) {
+		int left = low;
+		int right = high - 1;
+		while (left < right) {
+			double pivot = coordinates[this.order[(left + right) >>> 1]];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (coordinates[this.order[i]] < pivot) {
+					i++;
+				}
+				while (coordinates[this.order[j]] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int swap = this.order[i];
+					this.order[i++] = this.order[j];
+					this.order[j--] = swap;
+				}
+			}
+			if (target <= j) {
+				right = j;
+			} else if (target >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of cities in the index
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return this.order.length;
+	}
+
+	/**
+	 * Find the cities nearest to a city, not counting the city itself
+	 * 
+	 * @param city
+	 *            The city's index
+	 * @param count
+	 *            The number of cities to find
+	 * @param result
+	 *            Receives the cities' indices, nearest first, and must have
+	 *            room for count of them
+	 * @return The number of cities found, which is less than count only if
+	 *         there aren't that many other cities
+	 */
+	public int nearest(int city, int count, int result[]) {
+		return this.nearest(this.xs[city], this.ys[city], city, count, result);
+	}
+
+	/**
+	 * Find the cities nearest to a point
+	 * 
+	 * @param x
+	 *            The point's x position
+	 * @param y
+	 *            The point's y position
+	 * @param count
+	 *            The number of cities to find
+	 * @param result
+	 *            Receives the cities' indices, nearest first, and must have
+	 *            room for count of them
+	 * @return The number of cities found, which is less than count only if
+	 *         there aren't that many cities
+	 */
+	public int nearest(double x, double y, int count, int result[]) {
+		return this.nearest(x, y, -1, count, result);
+	}
+
+	private int nearest(double x, double y, int exclude, int count, int result[]) {
+		if (count <= 0) {
+			return 0;
+		}
+		NearestSearch search = new NearestSearch(x, y, exclude, count);
+		this.search(search, 0, this.order.length);
+		return search.drain(result);
+	}
+
+	/**
+	 * Find every city within a distance of a point
+	 * 
+	 * @param x
+	 *            The point's x position
+	 * @param y
+	 *            The point's y position
+	 * @param radius
+	 *            The distance
+	 * @return The indices of the cities no further than radius from the
+	 *         point, in no particular order
+	 */
+	public int[] withinRadius(double x, double y, double radius) {
+		RadiusSearch search = new RadiusSearch(x, y, radius);
+		this.search(search, 0, this.order.length);
+		int found[] = new int[search.count];
+		System.arraycopy(search.found, 0, found, 0, search.count);
+		return found;
+	}
+
+	/**
+	 * Find every other city within a distance of a city
+	 * 
+	 * @param city
+	 *            The city's index
+	 * @param radius
+	 *            The distance
+	 * @return The indices of the other cities no further than radius from
+	 *         the city, in no particular order
+	 */
+	public int[] withinRadius(int city, double radius) {
+		int found[] = this.withinRadius(this.xs[city], this.ys[city], radius);
+		int kept = 0;
+		for (int other : found) {
+			if (other != city) {
+				found[kept++] = other;
+			}
+		}
+		if (kept == found.length) {
+			return found;
+		}
+		int others[] = new int[kept];
+		System.arraycopy(found, 0, others, 0, kept);
+		return others;
+	}
+
+	/**
+	 * Build the nearest-neighbour lists for every city
+	 * 
+	 * @param count
+	 *            The number of neighbours per city; this is capped at the
+	 *            number of other cities
+	 * @return neighborLists
+	 */
+	public NeighborLists getNeighborLists(int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Need at least one neighbour per city, not " + count);
+		}
+		int size = this.order.length;
+		count = Math.min(count, Math.max(size - 1, 0));
+		int neighbors[] = new int[size * count];
+		int found[] = new int[count];
+		for (int city = 0; city < size; city++) {
+			this.nearest(city, count, found);
+			System.arraycopy(found, 0, neighbors, city * count, count);
+		}
+		return new NeighborLists(neighbors, size, count);
+	}
+
+	/**
+	 * Visit the cities in order[low..high) that might matter to a search,
+	 * nearer half first, skipping any half the search says is too far away
+	 */
+	private void search(Search search, int low, int high) {
+		while (high > low) {
+			int middle = (low + high) >>> 1;
+			int city = this.order[middle];
+			double deltaX = this.xs[city] - search.x;
+			double deltaY = this.ys[city] - search.y;
+			search.visit(city, (deltaX * deltaX) + (deltaY * deltaY));
+			if (high - low == 1) {
+				return;
+			}
+
+			// The split is at the city's coordinate; search the side the point
+			// is on, then the other side if it could hold anything closer
+			double split = this.axes[middle] == X_AXIS ? -deltaX : -deltaY;
+			boolean lowFirst = split < 0;
+			if (lowFirst) {
+				this.search(search, low, middle);
+			} else {
+				this.search(search, middle + 1, high);
+			}
+			if (search.reaches(split * split) == false) {
+				return;
+			}
+			if (lowFirst) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+	}
+
+	/**
+	 * The state of a query as it walks the tree
+	 */
+	private abstract static class Search {
+		final double x;
+		final double y;
+
+		Search(double x, double y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * Consider a city at a squared distance from the point
+		 */
+		abstract void visit(int city, double squaredDistance);
+
+		/**
+		 * Check whether anything at a squared distance from the point could
+		 * still make a difference
+		 */
+		abstract boolean reaches(double squaredDistance);
+	}
+
+	/**
+	 * Keeps the nearest cities so far in a max-heap, so the furthest of them
+	 * can be swapped out in O(log k). Ties go to the lower city index, which
+	 * makes the results the same as a brute-force scan's.
+	 */
+	private static class NearestSearch extends Search {
+		private final int exclude;
+		private final int cities[];
+		private final double squaredDistances[];
+		private int count = 0;
+
+		NearestSearch(double x, double y, int exclude, int capacity) {
+			super(x, y);
+			this.exclude = exclude;
+			this.cities = new int[capacity];
+			this.squaredDistances = new double[capacity];
+		}
+
+		@Override
+		void visit(int city, double squaredDistance) {
+			if (city == this.exclude) {
+				return;
+			}
+			if (this.count < this.cities.length) {
+				// Add to the bottom of the heap and sift up
+				int child = this.count++;
+				while (child > 0) {
+					int parent = (child - 1) >>> 1;
+					if (this.further(city, squaredDistance, parent) == false) {
+						break;
+					}
+					this.cities[child] = this.cities[parent];
+					this.squaredDistances[child] = this.squaredDistances[parent];
+					child = parent;
+				}
+				this.cities[child] = city;
+				this.squaredDistances[child] = squaredDistance;
+			} else if (this.further(city, squaredDistance, 0) == false) {
+				this.replaceTop(city, squaredDistance, this.count);
+			}
+		}
+
+		@Override
+		boolean reaches(double squaredDistance) {
+			// Equal distances can still win on city index
+			return this.count < this.cities.length || squaredDistance <= this.squaredDistances[0];
+		}
+
+		/**
+		 * Check whether a city is further away than the one at a heap slot
+		 */
+		private boolean further(int city, double squaredDistance, int slot) {
+			return squaredDistance > this.squaredDistances[slot]
+					|| (squaredDistance == this.squaredDistances[slot] && city > this.cities[slot]);
+		}
+
+		/**
+		 * Put a city at the top of the heap, in place of the furthest, and
+		 * sift it down through a heap of the given size
+		 */
+		private void replaceTop(int city, double squaredDistance, int size) {
+			int parent = 0;
+			while (true) {
+				int child = (parent * 2) + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size
+						&& this.further(this.cities[child + 1], this.squaredDistances[child + 1], child)) {
+					child++;
+				}
+				if (this.further(city, squaredDistance, child)) {
+					break;
+				}
+				this.cities[parent] = this.cities[child];
+				this.squaredDistances[parent] = this.squaredDistances[child];
+				parent = child;
+			}
+			this.cities[parent] = city;
+			this.squaredDistances[parent] = squaredDistance;
+		}
+
+		/**
+		 * Empty the heap into an array, nearest first
+		 */
+		int drain(int result[]) {
+			int found = this.count;
+			for (int size = found; size > 0; size--) {
+				result[size - 1] = this.cities[0];
+				this.replaceTop(this.cities[size - 1], this.squaredDistances[size - 1], size - 1);
+			}
+			return found;
+		}
+	}
+
+	/**
+	 * Collects every city within a radius
+	 */
+	private static class RadiusSearch extends Search {
+		private final double squaredRadius;
+		private int found[] = new int[16];
+		private int count = 0;
+
+		RadiusSearch(double x, double y, double radius) {
+			super(x, y);
+			this.squaredRadius = radius * radius;
+		}
+
+		@Override
+		void visit(int city, double squaredDistance) {
+			if (squaredDistance > this.squaredRadius) {
+				return;
+			}
+			if (this.count == this.found.length) {
+				int grown[] = new int[this.found.length * 2];
+				System.arraycopy(this.found, 0, grown, 0, this.count);
+				this.found = grown;
+			}
+			this.found[this.count++] = city;
+		}
+
+		@Override
+		boolean reaches(double squaredDistance) {
+			return squaredDistance <= this.squaredRadius;
+		}
+	}
+}
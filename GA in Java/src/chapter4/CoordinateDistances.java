@@ -0,0 +1,126 @@
+package chapter4;
+
+import java.util.Arrays;
+
+/**
+ * Distances between cities worked out from their coordinates when they're
+ * asked for, for instances too big for a DistanceMatrix.
+ * 
+ * A matrix for 100,000 cities would need 20GB even as triangular floats, but
+ * the coordinates take 1.6MB. The price is working each distance out again
+ * whenever it's asked for.
+ * 
+ * Each thread can keep a small direct-mapped cache of the distances it has
+ * looked up recently, since local search keeps asking about the same few
+ * pairs, such as a city and its successor, while it works on one part of the
+ * tour. The cache is a table of 2^cacheBits entries indexed by a hash of the
+ * pair, and a new pair simply overwrites whatever pair was in its entry. A
+ * square root is about as cheap as a cache lookup, though: local search over
+ * 20,000 cities ran no faster with the cache than without. So the cache is
+ * off unless it's asked for.
+ * 
+ * The distances are exactly those City.distanceFrom gives.
+ */
+public class CoordinateDistances implements DistanceProvider {
+
+	private final double xs[];
+	private final double ys[];
+	private final int cacheBits;
+
+	/**
+	 * Each thread's cache
+	 */
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>();
+
+	/**
+	 * Create distances without a cache
+	 * 
+	 * @param cities
+	 *            The cities
+	 */
+	public CoordinateDistances(City cities[]) {
+		this(cities, 0);
+	}
+
+	/**
+	 * Create distances
+	 * 
+	 * @param cities
+	 *            The cities
+	 * @param cacheBits
+	 *            The log2 of the number of entries in each thread's cache, or
+	 *            0 to work every distance out afresh; 12 bits gives 4096
+	 *            entries, which take 64KB per thread
+	 */
+	public CoordinateDistances(City cities[], int cacheBits) {
+		if (cacheBits < 0 || cacheBits > 24) {
+			throw new IllegalArgumentException("Cache bits must be from 0 to 24, not " + cacheBits);
+		}
+		this.xs = new double[cities.length];
+		this.ys = new double[cities.length];
+		for (int city = 0; city < cities.length; city++) {
+			this.xs[city] = cities[city].getX();
+			this.ys[city] = cities[city].getY();
+		}
+		this.cacheBits = cacheBits;
+	}
+
+	@Override
+	public double getDistance(int from, int to) {
+		if (this.cacheBits == 0) {
+			return this.calculate(from, to);
+		}
+		if (from > to) {
+			int swap = from;
+			from = to;
+			to = swap;
+		}
+
+		Cache cache = this.caches.get();
+		if (cache == null) {
+			cache = new Cache(1 << this.cacheBits);
+			this.caches.set(cache);
+		}
+
+		long pair = ((long) from << 32) | to;
+		int entry = (int) ((pair * 0x9E3779B97F4A7C15L) >>> (64 - this.cacheBits));
+		if (cache.pairs[entry] == pair) {
+			return cache.distances[entry];
+		}
+		double distance = this.calculate(from, to);
+		cache.pairs[entry] = pair;
+		cache.distances[entry] = distance;
+		return distance;
+	}
+
+	/**
+	 * Work a distance out with the Pythagorean theorem, in the same order as
+	 * City.distanceFrom
+	 */
+	private double calculate(int from, int to) {
+		double deltaX = this.xs[to] - this.xs[from];
+		double deltaY = this.ys[to] - this.ys[from];
+		return Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
+	}
+
+	@Override
+	public int size() {
+		return this.xs.length;
+	}
+
+	/**
+	 * A thread's cache: the pair in each entry, packed into a long with the
+	 * lower city index in the high half, and its distance
+	 */
+	private static class Cache {
+		final long pairs[];
+		final double distances[];
+
+		Cache(int entries) {
+			this.pairs = new long[entries];
+			this.distances = new double[entries];
+			// No pair of city indices packs to -1, so this marks an empty entry
+			Arrays.fill(this.pairs, -1L);
+		}
+	}
+}
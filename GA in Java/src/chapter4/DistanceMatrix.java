@@ -0,0 +1,126 @@
+package chapter4;
+
+/**
+ * The distance between every pair of cities, worked out once up front.
+ * 
+ * The distances are symmetric, so the matrix can either keep the full n x n
+ * table (DENSE), which makes a lookup a single multiply-add, or only the
+ * lower triangle (TRIANGULAR), which halves the memory at the cost of a
+ * little more arithmetic per lookup. Distances are stored as floats unless
+ * double precision is asked for, which halves the memory again; for 20,000
+ * cities a triangular float matrix takes 800MB.
+ */
+public class DistanceMatrix implements DistanceProvider {
+
+	/**
+	 * How the matrix is laid out in memory
+	 */
+	public enum Storage {
+		/**
+		 * Every pair, at index (from * n) + to
+		 */
+		DENSE,
+
+		/**
+		 * Only pairs with from > to, at index (from * (from - 1) / 2) + to
+		 */
+		TRIANGULAR
+	}
+
+	private final int size;
+	private final Storage storage;
+	private final float floatDistances[];
+	private final double doubleDistances[];
+
+	/**
+	 * Create a dense matrix of float distances
+	 * 
+	 * @param cities
+	 *            The cities
+	 */
+	public DistanceMatrix(City cities[]) {
+		this(cities, Storage.DENSE, false);
+	}
+
+	/**
+	 * Create a distance matrix
+	 * 
+	 * @param cities
+	 *            The cities
+	 * @param storage
+	 *            How to lay out the matrix
+	 * @param doublePrecision
+	 *            True to store doubles, which give exactly the same distances
+	 *            as City.distanceFrom, rather than floats
+	 */
+	public DistanceMatrix(City cities[], Storage storage, boolean doublePrecision) {
+		this.size = cities.length;
+		this.storage = storage;
+
+		long entries = storage == Storage.DENSE ? (long) this.size * this.size
+				: (long) this.size * (this.size - 1) / 2;
+		if (entries > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many cities for a " + storage + " distance matrix: " + this.size);
+		}
+		this.floatDistances = doublePrecision ? null : new float[(int) entries];
+		this.doubleDistances = doublePrecision ? new double[(int) entries] : null;
+
+		// Work out each pair once, and mirror it for the dense layout
+		for (int from = 1; from < this.size; from++) {
+			for (int to = 0; to < from; to++) {
+				double distance = cities[from].distanceFrom(cities[to]);
+				this.store(this.index(from, to), distance);
+				if (storage == Storage.DENSE) {
+					this.store(this.index(to, from), distance);
+				}
+			}
+		}
+	}
+
+	private void store(int index, double distance) {
+		if (this.floatDistances != null) {
+			this.floatDistances[index] = (float) distance;
+		} else {
+			this.doubleDistances[index] = distance;
+		}
+	}
+
+	/**
+	 * Find a pair of distinct cities in the matrix
+	 */
+	private int index(int from, int to) {
+		if (this.storage == Storage.DENSE) {
+			return (from * this.size) + to;
+		}
+		if (from < to) {
+			int swap = from;
+			from = to;
+			to = swap;
+		}
+		return (int) (((long) from * (from - 1)) >>> 1) + to;
+	}
+
+	@Override
+	public double getDistance(int from, int to) {
+		if (from == to) {
+			return 0;
+		}
+		int index = this.index(from, to);
+		if (this.floatDistances != null) {
+			return this.floatDistances[index];
+		}
+		return this.doubleDistances[index];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return How the matrix is laid out in memory
+	 */
+	public Storage getStorage() {
+		return this.storage;
+	}
+}
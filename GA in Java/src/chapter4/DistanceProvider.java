@@ -0,0 +1,31 @@
+package chapter4;
+
+/**
+ * Something that knows the distance between any two cities, identified by
+ * their index in the cities array.
+ * 
+ * Route length is the whole cost of evaluating a TSP individual, so the GA
+ * can take a DistanceProvider instead of the City[] array, letting the
+ * distances come from somewhere cheaper than the Pythagorean theorem, such as
+ * a precomputed DistanceMatrix.
+ */
+public interface DistanceProvider {
+
+	/**
+	 * Get the distance between two cities
+	 * 
+	 * @param from
+	 *            The index of one city
+	 * @param to
+	 *            The index of the other city
+	 * @return distance The distance between them
+	 */
+	public double getDistance(int from, int to);
+
+	/**
+	 * Get the number of cities
+	 * 
+	 * @return size The number of cities
+	 */
+	public int size();
+}
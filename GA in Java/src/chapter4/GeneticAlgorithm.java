@@ -1,5 +1,4 @@
 package chapter4;
-import java.util.Arrays;
 
 public class GeneticAlgorithm {
 	
@@ -9,14 +8,180 @@ public class GeneticAlgorithm {
     private int elitismCount;
 	protected int tournamentSize;
 
+	/**
+	 * Source of all random numbers used by the algorithm
+	 */
+	private RandomSource random;
+
+	/**
+	 * Whether mutation should draw the distance to the next mutated gene from
+	 * a geometric distribution, rather than testing every gene in turn. Both
+	 * modes mutate genes with the same probabilities, but at low mutation
+	 * rates the geometric mode needs far fewer random numbers.
+	 */
+	private boolean geometricMutation = false;
+
+	/**
+	 * How many individuals the last call to evalPopulation evaluated, and how
+	 * many it skipped because their fitness was still current, along with the
+	 * running totals across all calls
+	 */
+	private int lastEvaluatedCount = 0;
+	private int lastSkippedCount = 0;
+	private long totalEvaluatedCount = 0;
+	private long totalSkippedCount = 0;
+
+	/**
+	 * The population buffer that the next generation will be written into.
+	 * 
+	 * Crossover writes the offspring into this buffer and then keeps the
+	 * population it was given as the next spare, so the GA ping-pongs between
+	 * two preallocated populations instead of allocating a new one (plus a new
+	 * chromosome per offspring) every generation. Mutation then works in place.
+	 * Once both buffers exist, a generation allocates nothing.
+	 * 
+	 * This does mean that a population passed to crossoverPopulation gets
+	 * overwritten by the generation after next, so copy any individual you want
+	 * to keep hold of.
+	 */
+	private Population spare;
+
+	/**
+	 * Which crossover operator to use, and the operator's reusable scratch
+	 * space
+	 */
+	private PermutationCrossover.Type crossoverType = PermutationCrossover.Type.ORDERED;
+	private final PermutationCrossover crossover = new PermutationCrossover();
+
+	/**
+	 * Which move mutation makes. The default swaps two cities, as the book
+	 * does.
+	 */
+	private TourMutation.Type mutationType = TourMutation.Type.SWAP;
+
+	/**
+	 * The optional local search stage, and how many of the fittest
+	 * individuals it improves; 0 means every individual that has changed
+	 * since it was last evaluated
+	 */
+	private LocalSearch localSearch = null;
+	private int localSearchCount = 0;
+
+	/**
+	 * How long the local search stage took on its last call, and in total
+	 */
+	private long lastLocalSearchNanos = 0;
+	private long totalLocalSearchNanos = 0;
+
+	/**
+	 * Create a genetic algorithm that draws its random numbers from the given
+	 * source, so that runs can be reproduced from the source's seed.
+	 */
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
-			int tournamentSize) {
+			int tournamentSize, RandomSource random) {
 		
         this.populationSize = populationSize;
         this.mutationRate = mutationRate;
         this.crossoverRate = crossoverRate;
         this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+	}
+
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Switch between per-gene and geometric skip-sampling mutation
+	 * 
+	 * @param geometricMutation
+	 *            True to jump directly between mutated genes
+	 */
+	public void setGeometricMutation(boolean geometricMutation) {
+		this.geometricMutation = geometricMutation;
+	}
+
+	/**
+	 * Choose the crossover operator. The default is ordered crossover, as
+	 * described for crossoverPopulation.
+	 * 
+	 * @param crossoverType
+	 *            The operator to use
+	 */
+	public void setCrossoverType(PermutationCrossover.Type crossoverType) {
+		this.crossoverType = crossoverType;
+	}
+
+	/**
+	 * Choose the move mutation makes: swapping two cities, reversing the
+	 * section between them (2-opt), or moving one city to the other's
+	 * position. The default is a swap.
+	 * 
+	 * @param mutationType
+	 *            The move to make
+	 */
+	public void setMutationType(TourMutation.Type mutationType) {
+		this.mutationType = mutationType;
+	}
+
+	/**
+	 * Turn on the local search stage run by improvePopulation, which makes
+	 * this a memetic algorithm
+	 * 
+	 * @param localSearch
+	 *            The local search to apply, or null to turn the stage off
+	 * @param count
+	 *            How many of the fittest individuals to improve each
+	 *            generation, or 0 to improve every offspring and mutant
+	 */
+	public void setLocalSearch(LocalSearch localSearch, int count) {
+		this.localSearch = localSearch;
+		this.localSearchCount = Math.max(count, 0);
+	}
+
+	/**
+	 * @return The time the last improvePopulation took, in nanoseconds
+	 */
+	public long getLastLocalSearchNanos() {
+		return this.lastLocalSearchNanos;
+	}
+
+	/**
+	 * @return The time spent in improvePopulation across all generations, in
+	 *         nanoseconds
+	 */
+	public long getTotalLocalSearchNanos() {
+		return this.totalLocalSearchNanos;
+	}
+
+	/**
+	 * @return The number of individuals evaluated by the last evalPopulation
+	 */
+	public int getLastEvaluatedCount() {
+		return this.lastEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped by the last evalPopulation
+	 */
+	public int getLastSkippedCount() {
+		return this.lastSkippedCount;
+	}
+
+	/**
+	 * @return The number of individuals evaluated across all generations
+	 */
+	public long getTotalEvaluatedCount() {
+		return this.totalEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped across all generations
+	 */
+	public long getTotalSkippedCount() {
+		return this.totalSkippedCount;
 	}
 
 
@@ -31,6 +196,21 @@ public class GeneticAlgorithm {
         Population population = new Population(this.populationSize, chromosomeLength);
         return population;
     }
+
+    /**
+     * Initialize population with tours from a population initializer, such
+     * as random permutations or nearest-neighbour tours, rather than with
+     * every individual visiting the cities in order
+     * 
+     * @param chromosomeLength The length of the individuals chromosome
+     * @param initializer The initializer that builds the tours
+     * @return population The initial population generated
+     */
+    public Population initPopulation(int chromosomeLength, PopulationInitializer initializer){
+        Population population = new Population(this.populationSize, chromosomeLength);
+        initializer.initialize(population, this.random);
+        return population;
+    }
     
 	/**
 	 * Check if population has met termination condition -- this termination
@@ -61,8 +241,7 @@ public class GeneticAlgorithm {
 	 */
     public double calcFitness(Individual individual, City cities[]){
         // Get fitness
-        Route route = new Route(individual, cities);
-        double fitness = 1 / route.getDistance();
+        double fitness = 1 / Route.getDistance(individual, cities);
                 
         // Store fitness
         individual.setFitness(fitness);
@@ -70,20 +249,81 @@ public class GeneticAlgorithm {
         return fitness;
     }
 
+	/**
+	 * Calculate individual's fitness value from a table of distances, such as
+	 * a DistanceMatrix, rather than from the cities' coordinates
+	 * 
+	 * If the individual already knows its tour length, because it was
+	 * evaluated before and mutation has kept the length up to date since,
+	 * that's used as it is; otherwise the route is added up and the length
+	 * recorded for next time.
+	 * 
+	 * @param individual
+	 *            the individual to evaluate
+	 * @param distances
+	 *            the distances between the cities being referenced
+	 * @return double The fitness value for individual
+	 */
+    public double calcFitness(Individual individual, DistanceProvider distances){
+        double tourLength = individual.getTourLength();
+        if (Double.isNaN(tourLength)) {
+            tourLength = Route.getDistance(individual, distances);
+        }
+        double fitness = 1 / tourLength;
+        individual.setFitness(fitness);
+        individual.setTourLength(tourLength);
+        return fitness;
+    }
+
     /**
      * Evaluate population -- basically run calcFitness on each individual.
      * 
+     * Individuals whose genes haven't changed since their fitness was
+     * calculated keep that fitness; only stale individuals are evaluated.
+     * 
      * @param population the population to evaluate
      * @param cities the cities being referenced
      */
     public void evalPopulation(Population population, City cities[]){
+        this.evalPopulation(population, cities, null);
+    }
+
+    /**
+     * Evaluate population, looking distances up in a distance provider
+     * 
+     * @param population the population to evaluate
+     * @param distances the distances between the cities being referenced
+     */
+    public void evalPopulation(Population population, DistanceProvider distances){
+        this.evalPopulation(population, null, distances);
+    }
+
+    private void evalPopulation(Population population, City cities[], DistanceProvider distances){
         double populationFitness = 0;
+        int evaluated = 0;
+        int skipped = 0;
         
         // Loop over population evaluating individuals and summing population fitness
         for (Individual individual : population.getIndividuals()) {
-            populationFitness += this.calcFitness(individual, cities);
+            // Only individuals whose chromosome has changed need evaluating
+            if (individual.isFitnessStale()) {
+                if (distances != null) {
+                    populationFitness += this.calcFitness(individual, distances);
+                } else {
+                    populationFitness += this.calcFitness(individual, cities);
+                }
+                evaluated++;
+            } else {
+                populationFitness += individual.getFitness();
+                skipped++;
+            }
         }
         
+        this.lastEvaluatedCount = evaluated;
+        this.lastSkippedCount = skipped;
+        this.totalEvaluatedCount += evaluated;
+        this.totalSkippedCount += skipped;
+        
         double avgFitness = populationFitness / population.size();
         population.setPopulationFitness(avgFitness);
     }
@@ -93,23 +333,30 @@ public class GeneticAlgorithm {
 	 * 
 	 * Tournament selection was introduced in Chapter 3
 	 * 
+	 * Rather than shuffling the whole population and copying the first N
+	 * individuals into a separate tournament population, we draw N random
+	 * indices (with replacement) and remember the fittest contestant. This
+	 * costs O(N) per parent, allocates nothing, and leaves the population in
+	 * the order getFittest sorted it into.
+	 * 
 	 * @param population
 	 *            
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
+		Individual winner = null;
 
-		// Add random individuals to the tournament
-		population.shuffle();
+		// Draw random contestants and keep the fittest one seen so far
 		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+			int contestantIndex = this.random.nextInt(population.size());
+			Individual contestant = population.getIndividual(contestantIndex);
+			if (winner == null || contestant.getFitness() > winner.getFitness()) {
+				winner = contestant;
+			}
 		}
 
 		// Return the best
-		return tournament.getFittest(0);
+		return winner;
 	}
 
 	
@@ -131,12 +378,20 @@ public class GeneticAlgorithm {
 	 * ensures that no cities are skipped or visited twice, while also
 	 * preserving ordered batches of cities.
 	 * 
+	 * Checking which cities are already represented is done with a bitmap
+	 * rather than by searching the offspring, so this takes O(n) time per
+	 * offspring instead of O(n^2); see PermutationCrossover, which also offers
+	 * PMX and cycle crossover through setCrossoverType.
+	 * 
+	 * The new population is written into the GA's spare population buffer,
+	 * and the population passed in becomes the spare for the next generation.
+	 * 
 	 * @param population
 	 * @return The new population
 	 */
     public Population crossoverPopulation(Population population){
-        // Create new population
-        Population newPopulation = new Population(population.size());
+        // Recycle the spare population buffer for the new population
+        Population newPopulation = this.nextBuffer(population);
         
         // Loop over current population by fitness
         for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
@@ -144,59 +399,163 @@ public class GeneticAlgorithm {
             Individual parent1 = population.getFittest(populationIndex);
             
             // Apply crossover to this individual?
-            if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
+            if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
                 // Find parent2 with tournament selection
                 Individual parent2 = this.selectParent(population);
 
-                // Create blank offspring chromosome
-                int offspringChromosome[] = new int[parent1.getChromosomeLength()];
-                Arrays.fill(offspringChromosome, -1);
-                Individual offspring = new Individual(offspringChromosome);
+                // Overwrite the offspring's slot in the new population
+                Individual offspring = newPopulation.getIndividual(populationIndex);
+                offspring.setFitness(-1);
+
+                if (this.crossoverType == PermutationCrossover.Type.CYCLE) {
+                    // Cycle crossover doesn't need a slice
+                    this.crossover.cycle(parent1, parent2, offspring);
+                    continue;
+                }
 
                 // Get subset of parent chromosomes
-                int substrPos1 = (int) (Math.random() * parent1.getChromosomeLength());
-                int substrPos2 = (int) (Math.random() * parent1.getChromosomeLength());
+                int substrPos1 = (int) (this.random.nextDouble() * parent1.getChromosomeLength());
+                int substrPos2 = (int) (this.random.nextDouble() * parent1.getChromosomeLength());
 
                 // make the smaller the start and the larger the end
                 final int startSubstr = Math.min(substrPos1, substrPos2);
                 final int endSubstr = Math.max(substrPos1, substrPos2);
 
-                // Loop and add the sub tour from parent1 to our child
-                for (int i = startSubstr; i < endSubstr; i++) {
-                    offspring.setGene(i, parent1.getGene(i));
-                }
-
-                // Loop through parent2's city tour
-                for (int i = 0; i < parent2.getChromosomeLength(); i++) {
-                    int parent2Gene = i + endSubstr;
-                    if (parent2Gene >= parent2.getChromosomeLength()) {
-                        parent2Gene -= parent2.getChromosomeLength();
-                    }
-
-                    // If offspring doesn't have the city add it
-                    if (offspring.containsGene(parent2.getGene(parent2Gene)) == false) {
-                        // Loop to find a spare position in the child's tour
-                        for (int ii = 0; ii < offspring.getChromosomeLength(); ii++) {
-                            // Spare position found, add city
-                            if (offspring.getGene(ii) == -1) {
-                                offspring.setGene(ii, parent2.getGene(parent2Gene));
-                                break;
-                            }
-                        }
-                    }
+                if (this.crossoverType == PermutationCrossover.Type.PARTIALLY_MAPPED) {
+                    this.crossover.partiallyMapped(parent1, parent2, offspring, startSubstr, endSubstr);
+                } else {
+                    this.crossover.ordered(parent1, parent2, offspring, startSubstr, endSubstr);
                 }
 
-                // Add child
-                newPopulation.setIndividual(populationIndex, offspring);
             } else {
                 // Add individual to new population without applying crossover
-                newPopulation.setIndividual(populationIndex, parent1);
+                newPopulation.getIndividual(populationIndex).copyFrom(parent1);
             }
         }
         
+        // The old generation's buffer will hold the generation after this one
+        this.spare = population;
+        
         return newPopulation;
     }
 
+	/**
+	 * Get a population buffer to write the next generation into
+	 * 
+	 * This is the spare buffer from the previous generation if there is one
+	 * that fits. Otherwise (on the first generation, or if the population's
+	 * shape has changed) a new buffer is allocated.
+	 * 
+	 * @param population
+	 *            The current generation
+	 * @return A population with the same size and chromosome length
+	 */
+	private Population nextBuffer(Population population) {
+		Population buffer = this.spare;
+		if (buffer == null || buffer == population || buffer.size() != population.size()
+				|| buffer.getChromosomeLength() != population.getChromosomeLength()) {
+			buffer = new Population(population.size(), population.getChromosomeLength());
+		}
+		return buffer;
+	}
+
+	/**
+	 * Apply the local search stage, if there is one, to the population
+	 * 
+	 * This goes after mutatePopulation and before evalPopulation. Improved
+	 * individuals come out knowing their tour length, so evaluating them
+	 * against the local search's distances is O(1).
+	 * 
+	 * By default, the individuals improved are the ones whose genes have
+	 * changed since they were last evaluated: the offspring of crossover and
+	 * the individuals mutation touched. Everything else is already as good as
+	 * the local search can make it. With a count set, only that many of the
+	 * fittest individuals are improved instead, which needs the changed
+	 * individuals evaluated first so that they can be ranked.
+	 * 
+	 * @param population
+	 *            The population to improve
+	 * @return The improved population, which is the one passed in
+	 */
+	public Population improvePopulation(Population population) {
+		if (this.localSearch == null) {
+			this.lastLocalSearchNanos = 0;
+			return population;
+		}
+		long start = System.nanoTime();
+
+		if (this.localSearchCount == 0) {
+			for (Individual individual : population.getIndividuals()) {
+				if (individual.isFitnessStale()) {
+					this.localSearch.improve(individual);
+				}
+			}
+		} else {
+			for (Individual individual : population.getIndividuals()) {
+				if (individual.isFitnessStale()) {
+					this.calcFitness(individual, this.localSearch.getDistances());
+				}
+			}
+
+			// Pick out the fittest first, since improving them changes the
+			// ranking
+			int count = Math.min(this.localSearchCount, population.size());
+			Individual fittest[] = new Individual[count];
+			for (int i = 0; i < count; i++) {
+				fittest[i] = population.getFittest(i);
+			}
+			for (Individual individual : fittest) {
+				if (this.localSearch.improve(individual) > 0) {
+					this.calcFitness(individual, this.localSearch.getDistances());
+				}
+			}
+		}
+
+		this.lastLocalSearchNanos = System.nanoTime() - start;
+		this.totalLocalSearchNanos += this.lastLocalSearchNanos;
+		return population;
+	}
+
+	/**
+	 * Draw the number of genes to leave alone before the next mutation
+	 * 
+	 * Each gene mutates independently with probability mutationRate, so the
+	 * gap between one mutated gene and the next follows a geometric
+	 * distribution. Drawing the gap directly lets us jump straight to the next
+	 * gene that needs mutating instead of rolling the dice for every gene in
+	 * between, while mutating exactly the same distribution of genes.
+	 * 
+	 * @return The number of genes to skip
+	 */
+	private long nextMutationGap() {
+		if (this.mutationRate >= 1) {
+			return 0;
+		}
+		if (this.mutationRate <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		double gap = Math.floor(Math.log(1 - this.random.nextDouble()) / Math.log1p(-this.mutationRate));
+		return (long) Math.min(gap, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Mutate a gene by making the mutation move between it and a random
+	 * position
+	 * 
+	 * @param individual
+	 *            The individual to mutate
+	 * @param geneIndex
+	 *            The gene to mutate
+	 * @param distances
+	 *            The distances used to keep the tour length up to date, or
+	 *            null
+	 */
+	private void mutateGene(Individual individual, int geneIndex, DistanceProvider distances) {
+		// Get new gene position
+		int newGenePos = (int) (this.random.nextDouble() * individual.getChromosomeLength());
+		TourMutation.mutate(this.mutationType, individual, geneIndex, newGenePos, distances);
+	}
+
     /**
 	 * Apply mutation to population
 	 * 
@@ -204,44 +563,63 @@ public class GeneticAlgorithm {
 	 * this form of mutation will randomly swap two genes instead of
 	 * bit-flipping a gene like in earlier examples.
 	 * 
+	 * Individuals are mutated in place, so the population that's returned is
+	 * the same one that was passed in.
+	 * 
+	 * setMutationType chooses a different move: a 2-opt inversion or an
+	 * insertion.
+	 * 
 	 * @param population
 	 *            The population to apply mutation to
 	 * @return The mutated population
 	 */
     public Population mutatePopulation(Population population){
-        // Initialize new population
-        Population newPopulation = new Population(this.populationSize);
-        
+        return this.mutatePopulation(population, null);
+    }
+
+	/**
+	 * Apply mutation to population, keeping tour lengths up to date
+	 * 
+	 * Individuals that know their tour length, from an earlier evaluation
+	 * against the same distances, have it adjusted by each move from just the
+	 * edges the move changes (see TourMutation). Their next evaluation with
+	 * evalPopulation(Population, DistanceProvider) then costs O(1) rather than
+	 * O(n). The moves and random numbers are exactly those of
+	 * mutatePopulation(Population).
+	 * 
+	 * @param population
+	 *            The population to apply mutation to
+	 * @param distances
+	 *            The distances between the cities being referenced
+	 * @return The mutated population
+	 */
+    public Population mutatePopulation(Population population, DistanceProvider distances){
         // Loop over current population by fitness
         for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
             Individual individual = population.getFittest(populationIndex);
 
             // Skip mutation if this is an elite individual
             if (populationIndex >= this.elitismCount) {   
-            	// System.out.println("Mutating population member "+populationIndex);
-                // Loop over individual's genes
-                for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {   
-                	// System.out.println("\tGene index "+geneIndex);
-                    // Does this gene need mutation?
-                    if (this.mutationRate > Math.random()) {
-                        // Get new gene position
-                        int newGenePos = (int) (Math.random() * individual.getChromosomeLength());
-                        // Get genes to swap
-                        int gene1 = individual.getGene(newGenePos);
-                        int gene2 = individual.getGene(geneIndex);
-                        // Swap genes
-                        individual.setGene(geneIndex, gene1);
-                        individual.setGene(newGenePos, gene2);
+                if (this.geometricMutation) {
+                    // Jump straight from one mutated gene to the next
+                    for (long geneIndex = this.nextMutationGap(); geneIndex < individual
+                            .getChromosomeLength(); geneIndex += 1 + this.nextMutationGap()) {
+                        this.mutateGene(individual, (int) geneIndex, distances);
+                    }
+                } else {
+                    // Loop over individual's genes
+                    for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {   
+                        // Does this gene need mutation?
+                        if (this.mutationRate > this.random.nextDouble()) {
+                            this.mutateGene(individual, geneIndex, distances);
+                        }
                     }
                 }
             }
-            
-            // Add individual to population
-            newPopulation.setIndividual(populationIndex, individual);
         }
         
         // Return mutated population
-        return newPopulation;
+        return population;
     }
 
 }
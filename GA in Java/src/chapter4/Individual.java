@@ -1,12 +1,39 @@
 package chapter4;
 
+import java.util.Arrays;
+
 public class Individual {
-	
+
 	/**
-	 * In this case, the chromosome is an array of integers rather than a string. 
+	 * In this case, the chromosome is an array of integers rather than a string.
+	 * 
+	 * An individual doesn't necessarily own the whole array, though. Members
+	 * of a Population are views over the population's shared gene store: their
+	 * genes live at chromosome[offset] to chromosome[offset + length - 1], and
+	 * their fitness lives at fitness[slot] in the population's fitness array.
+	 * A standalone individual simply has an array of its own, at offset 0.
+	 * 
+	 * fitnessStale[slot] records whether the chromosome has changed since the
+	 * fitness was last stored; evaluation skips individuals whose fitness is
+	 * still current.
+	 * 
+	 * tourLength[slot] carries the length of the tour forward, so that a
+	 * mutation that knows how much it changed the length by can keep it up
+	 * to date without adding up every edge again. It's NaN when the length
+	 * isn't known.
 	 */
-	private int[] chromosome;
-	private double fitness = -1;
+	private final int[] chromosome;
+	private final int offset;
+	private final int chromosomeLength;
+	private final double[] fitness;
+	private final boolean[] fitnessStale;
+	private final double[] tourLength;
+	private final int slot;
+
+	/**
+	 * The population whose store this individual is a view over, if any
+	 */
+	private final Population population;
 
 	/**
 	 * Initializes individual with specific chromosome
@@ -17,6 +44,13 @@ public class Individual {
 	public Individual(int[] chromosome) {
 		// Create individualchromosome
 		this.chromosome = chromosome;
+		this.offset = 0;
+		this.chromosomeLength = chromosome.length;
+		this.fitness = new double[] { -1 };
+		this.fitnessStale = new boolean[] { true };
+		this.tourLength = new double[] { Double.NaN };
+		this.slot = 0;
+		this.population = null;
 	}
 
 	/**
@@ -26,10 +60,8 @@ public class Individual {
 	 *            The length of the individuals chromosome
 	 */
 	public Individual(int chromosomeLength) {
-		// Create random individual
-		int[] individual;
-		individual = new int[chromosomeLength];
-		
+		this(new int[chromosomeLength]);
+
 		/**
 		 * In this case, we can no longer simply pick 0s and 1s -- we need to
 		 * use every city index available. We also don't need to randomize or
@@ -37,19 +69,61 @@ public class Individual {
 		 * take care of that for us.
 		 */
 		for (int gene = 0; gene < chromosomeLength; gene++) {
-			individual[gene] = gene;
+			this.chromosome[gene] = gene;
 		}
-		
-		this.chromosome = individual;
+	}
+
+	/**
+	 * Initializes an individual as a view over one slot of a population's
+	 * gene and fitness store
+	 * 
+	 * @param population
+	 *            The population that owns the store
+	 * @param chromosomes
+	 *            The population's genes, one chromosome after another
+	 * @param fitness
+	 *            The population's fitness values
+	 * @param fitnessStale
+	 *            The population's stale fitness flags
+	 * @param tourLength
+	 *            The population's tour lengths
+	 * @param slot
+	 *            The slot this individual occupies
+	 * @param chromosomeLength
+	 *            The length of the individuals chromosome
+	 */
+	Individual(Population population, int[] chromosomes, double[] fitness, boolean[] fitnessStale,
+			double[] tourLength, int slot, int chromosomeLength) {
+		long offset = (long) slot * chromosomeLength;
+		if (offset + chromosomeLength > chromosomes.length) {
+			throw new IllegalArgumentException("Slot " + slot + " of " + chromosomeLength
+					+ " genes doesn't fit in a store of " + chromosomes.length + " genes");
+		}
+		this.chromosome = chromosomes;
+		this.offset = (int) offset;
+		this.chromosomeLength = chromosomeLength;
+		this.fitness = fitness;
+		this.fitnessStale = fitnessStale;
+		this.tourLength = tourLength;
+		this.slot = slot;
+		this.population = population;
 	}
 
 	/**
 	 * Gets individual's chromosome
 	 * 
+	 * A standalone individual returns its own array, so call markFitnessStale
+	 * after writing to it. An individual that's a view over a population's
+	 * store returns a copy of its genes instead, so prefer getGene in
+	 * performance-sensitive code.
+	 * 
 	 * @return The individual's chromosome
 	 */
 	public int[] getChromosome() {
-		return this.chromosome;
+		if (this.population == null) {
+			return this.chromosome;
+		}
+		return Arrays.copyOfRange(this.chromosome, this.offset, this.offset + this.chromosomeLength);
 	}
 
 	/**
@@ -58,7 +132,7 @@ public class Individual {
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
@@ -68,7 +142,9 @@ public class Individual {
 	 * @param offset
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		this.chromosome[this.offset + offset] = gene;
+		this.fitnessStale[this.slot] = true;
+		this.tourLength[this.slot] = Double.NaN;
 	}
 
 	/**
@@ -78,7 +154,22 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		return this.chromosome[this.offset + offset];
+	}
+
+	/**
+	 * Copy another individual's genes, fitness and tour length into this one,
+	 * including whether that fitness is stale
+	 * 
+	 * @param individual
+	 *            The individual to copy
+	 */
+	public void copyFrom(Individual individual) {
+		System.arraycopy(individual.chromosome, individual.offset, this.chromosome, this.offset,
+				this.chromosomeLength);
+		this.setFitness(individual.getFitness());
+		this.fitnessStale[this.slot] = individual.isFitnessStale();
+		this.tourLength[this.slot] = individual.getTourLength();
 	}
 
 	/**
@@ -88,7 +179,53 @@ public class Individual {
 	 *            The individuals fitness
 	 */
 	public void setFitness(double fitness) {
-		this.fitness = fitness;
+		this.fitness[this.slot] = fitness;
+		this.fitnessStale[this.slot] = false;
+		if (this.population != null) {
+			this.population.invalidateRanking();
+		}
+	}
+
+	/**
+	 * Check whether the chromosome has changed since fitness was last stored
+	 * 
+	 * @return True if the individual needs to be evaluated
+	 */
+	public boolean isFitnessStale() {
+		return this.fitnessStale[this.slot];
+	}
+
+	/**
+	 * Mark the fitness as out of date. setGene does this already; call it
+	 * after changing the chromosome array directly.
+	 */
+	public void markFitnessStale() {
+		this.fitnessStale[this.slot] = true;
+		this.tourLength[this.slot] = Double.NaN;
+	}
+
+	/**
+	 * Get the length of the tour, if it's known
+	 * 
+	 * The length is recorded when the GA evaluates the individual against a
+	 * DistanceProvider, and kept up to date by TourMutation's moves. Any other
+	 * change to the genes forgets it.
+	 * 
+	 * @return The tour length, or NaN if it isn't known
+	 */
+	public double getTourLength() {
+		return this.tourLength[this.slot];
+	}
+
+	/**
+	 * Record the length of the tour. Unlike setFitness, this doesn't mark the
+	 * fitness as current, nor disturb the population's ranking.
+	 * 
+	 * @param tourLength
+	 *            The tour length, or NaN to forget it
+	 */
+	public void setTourLength(double tourLength) {
+		this.tourLength[this.slot] = tourLength;
 	}
 
 	/**
@@ -97,13 +234,13 @@ public class Individual {
 	 * @return The individual's fitness
 	 */
 	public double getFitness() {
-		return this.fitness;
+		return this.fitness[this.slot];
 	}
-	
+
 	public String toString() {
 		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene] + ",";
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output += this.getGene(gene) + ",";
 		}
 		return output;
 	}
@@ -119,7 +256,7 @@ public class Individual {
 	 * @return
 	 */
 	public boolean containsGene(int gene) {
-		for (int i = 0; i < this.chromosome.length; i++) {
+		for (int i = this.offset; i < this.offset + this.chromosomeLength; i++) {
 			if (this.chromosome[i] == gene) {
 				return true;
 			}
@@ -128,5 +265,5 @@ public class Individual {
 	}
 
 
-	
+
 }
@@ -0,0 +1,417 @@
+package chapter4;
+
+/**
+ * Improves a tour with 2-opt and Or-opt moves until neither can shorten it.
+ * 
+ * A 2-opt move removes two edges and reconnects the tour the other way, which
+ * reverses the section between them. An Or-opt move takes a run of one, two
+ * or three consecutive cities out of the tour and puts it back in between two
+ * other cities, either way round. Together they untangle crossed edges and
+ * move stray cities to where they belong, which crossover and random mutation
+ * are very slow to do on their own; a GA that applies them to its offspring
+ * (a "memetic" algorithm) gets near-optimal tours in far fewer generations.
+ * 
+ * Two standard tricks keep each pass close to linear:
+ * 
+ * Candidate lists: a move is only tried if it joins a city to one of its k
+ * nearest neighbours, from a NeighborLists, so finding a move for a city costs
+ * O(k) rather than O(n).
+ * 
+ * Don't-look bits: the cities still worth looking at are kept in a queue.
+ * A city comes off the queue when no improving move starts from it, and only
+ * goes back on when a move changes one of its edges. Once the tour is nearly
+ * optimal, most cities are never looked at again.
+ * 
+ * Every move is carried out as one or more reversals of a section of the tour,
+ * and each reversal flips whichever side of the tour is shorter. Reversing the
+ * other side gives the same tour, just walked the other way, so the distances
+ * must be symmetric, as they are for a DistanceMatrix.
+ * 
+ * An instance reuses its scratch space from one tour to the next, so it isn't
+ * safe to share between threads.
+ */
+public class LocalSearch {
+
+	/**
+	 * The smallest gain worth making a move for, so that rounding error can't
+	 * make the search go round in circles
+	 */
+	private static final double MIN_GAIN = 1e-9;
+
+	/**
+	 * The longest run of cities an Or-opt move will relocate
+	 */
+	private static final int MAX_SEGMENT = 3;
+
+	private final DistanceProvider distances;
+	private final NeighborLists neighbors;
+	private boolean orOpt = true;
+
+	/**
+	 * The tour being improved, and the position of each city in it
+	 */
+	private final int tour[];
+	private final int positions[];
+
+	/**
+	 * The cities still to look at, as a ring buffer, and whether each city is
+	 * in it; a city that isn't has its don't-look bit set
+	 */
+	private final int queue[];
+	private final boolean queued[];
+	private int queueHead;
+	private int queueCount;
+
+	/**
+	 * Counters for the last call to improve
+	 */
+	private int lastTwoOptMoves = 0;
+	private int lastOrOptMoves = 0;
+
+	/**
+	 * Create a local search
+	 * 
+	 * @param distances
+	 *            The distances between cities
+	 * @param neighbors
+	 *            Each city's nearest neighbours, the only cities a move will
+	 *            try joining it to
+	 */
+	public LocalSearch(DistanceProvider distances, NeighborLists neighbors) {
+		if (neighbors.size() != distances.size()) {
+			throw new IllegalArgumentException("Neighbour lists are for " + neighbors.size()
+					+ " cities, but there are distances for " + distances.size());
+		}
+		this.distances = distances;
+		this.neighbors = neighbors;
+		int size = distances.size();
+		this.tour = new int[size];
+		this.positions = new int[size];
+		this.queue = new int[size];
+		this.queued = new boolean[size];
+	}
+
+	/**
+	 * Switch Or-opt moves on or off. They're on by default; with them off,
+	 * only 2-opt moves are made.
+	 * 
+	 * @param orOpt
+	 *            True to make Or-opt moves as well as 2-opt moves
+	 */
+	public void setOrOpt(boolean orOpt) {
+		this.orOpt = orOpt;
+	}
+
+	/**
+	 * @return The distances the search measures tours with
+	 */
+	public DistanceProvider getDistances() {
+		return this.distances;
+	}
+
+	/**
+	 * @return The number of 2-opt moves made by the last call to improve
+	 */
+	public int getLastTwoOptMoves() {
+		return this.lastTwoOptMoves;
+	}
+
+	/**
+	 * @return The number of Or-opt moves made by the last call to improve
+	 */
+	public int getLastOrOptMoves() {
+		return this.lastOrOptMoves;
+	}
+
+	/**
+	 * Improve an individual's tour in place, until no 2-opt or Or-opt move
+	 * along the candidate lists can shorten it
+	 * 
+	 * The individual's genes are only written to if the tour gets shorter.
+	 * Either way, the individual's tour length is recorded, so evaluating it
+	 * against the same distances afterwards doesn't need to add the route up.
+	 * 
+	 * @param individual
+	 *            The individual to improve
+	 * @return How much shorter the tour is
+	 */
+	public double improve(Individual individual) {
+		int size = this.tour.length;
+		if (individual.getChromosomeLength() != size) {
+			throw new IllegalArgumentException("Individual has " + individual.getChromosomeLength()
+					+ " genes, but there are " + size + " cities");
+		}
+		this.lastTwoOptMoves = 0;
+		this.lastOrOptMoves = 0;
+
+		double length = individual.getTourLength();
+		if (Double.isNaN(length)) {
+			length = Route.getDistance(individual, this.distances);
+		}
+		if (size < 4) {
+			// Every tour of three or fewer cities has the same length
+			individual.setTourLength(length);
+			return 0;
+		}
+
+		// Start with every city on the queue
+		for (int position = 0; position < size; position++) {
+			int city = individual.getGene(position);
+			this.tour[position] = city;
+			this.positions[city] = position;
+			this.queue[position] = city;
+			this.queued[city] = true;
+		}
+		this.queueHead = 0;
+		this.queueCount = size;
+
+		double gain = 0;
+		while (this.queueCount > 0) {
+			int city = this.queue[this.queueHead];
+			this.queueHead = this.queueHead + 1 == size ? 0 : this.queueHead + 1;
+			this.queueCount--;
+			this.queued[city] = false;
+
+			double moveGain = this.tryTwoOpt(city);
+			if (moveGain > 0) {
+				this.lastTwoOptMoves++;
+			} else if (this.orOpt) {
+				moveGain = this.tryOrOpt(city);
+				if (moveGain > 0) {
+					this.lastOrOptMoves++;
+				}
+			}
+			if (moveGain > 0) {
+				gain += moveGain;
+				// Have another look at this city, since it may have more to
+				// give now its edges have changed
+				this.push(city);
+			}
+		}
+
+		if (gain > 0) {
+			for (int position = 0; position < size; position++) {
+				individual.setGene(position, this.tour[position]);
+			}
+		}
+		individual.setTourLength(length - gain);
+		return gain;
+	}
+
+	/**
+	 * Look for an improving 2-opt move that joins a city to one of its
+	 * neighbours, and make the first one found
+	 * 
+	 * The move replaces the city's edge to its successor, say, and the
+	 * neighbour's edge to its successor with an edge between the two cities
+	 * and an edge between the two successors. For that to be shorter, the new
+	 * edge from the city has to be shorter than the one it replaces, so the
+	 * scan along the neighbour list can stop as soon as it isn't.
+	 * 
+	 * @return The gain, or 0 if there's no improving move
+	 */
+	private double tryTwoOpt(int a) {
+		for (int forward = 1; forward >= 0; forward--) {
+			int b = forward == 1 ? this.next(a) : this.previous(a);
+			double ab = this.distances.getDistance(a, b);
+			for (int rank = 0; rank < this.neighbors.getNeighborCount(); rank++) {
+				int c = this.neighbors.getNeighbor(a, rank);
+				double ac = this.distances.getDistance(a, c);
+				if (ac >= ab) {
+					break;
+				}
+				int d = forward == 1 ? this.next(c) : this.previous(c);
+				if (c == b || d == a) {
+					continue;
+				}
+				double gain = ab + this.distances.getDistance(c, d) - ac - this.distances.getDistance(b, d);
+				if (gain > MIN_GAIN) {
+					this.twoOptMove(a, b, c, d);
+					this.push(a);
+					this.push(b);
+					this.push(c);
+					this.push(d);
+					return gain;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Look for an improving Or-opt move for a run of cities that starts or
+	 * ends at this city, and make the first one found
+	 * 
+	 * Taking the run out of the tour saves the two edges at its ends, less
+	 * the edge that joins up the gap. Putting it back in between x and y
+	 * costs the edges from x and y to the ends of the run, less the edge from
+	 * x to y. Only places next to one of the run's ends' neighbours are tried,
+	 * and the scan along a neighbour list stops once the neighbour is further
+	 * away than taking the run out saved.
+	 * 
+	 * @return The gain, or 0 if there's no improving move
+	 */
+	private double tryOrOpt(int city) {
+		int size = this.tour.length;
+		for (int length = 1; length <= MAX_SEGMENT && length + 3 <= size; length++) {
+			for (int start = 0; start < (length == 1 ? 1 : 2); start++) {
+				// The run is length cities from first to last, going forward
+				int first = start == 0 ? city : this.tour[this.offset(this.positions[city], 1 - length)];
+				int last = this.tour[this.offset(this.positions[first], length - 1)];
+				int before = this.previous(first);
+				int after = this.next(last);
+				double removeGain = this.distances.getDistance(before, first)
+						+ this.distances.getDistance(last, after) - this.distances.getDistance(before, after);
+				if (removeGain <= MIN_GAIN) {
+					continue;
+				}
+
+				for (int end = 0; end < 2; end++) {
+					int endCity = end == 0 ? first : last;
+					for (int rank = 0; rank < this.neighbors.getNeighborCount(); rank++) {
+						int c = this.neighbors.getNeighbor(endCity, rank);
+						if (this.distances.getDistance(endCity, c) >= removeGain) {
+							break;
+						}
+						if (this.inRun(c, first, length)) {
+							continue;
+						}
+						// Try the edges on either side of the neighbour
+						for (int side = 0; side < 2; side++) {
+							int x = side == 0 ? c : this.previous(c);
+							int y = side == 0 ? this.next(c) : c;
+							if (this.inRun(x, first, length) || this.inRun(y, first, length)) {
+								continue;
+							}
+							double xy = this.distances.getDistance(x, y);
+							double forwardCost = this.distances.getDistance(x, first)
+									+ this.distances.getDistance(last, y) - xy;
+							double reversedCost = this.distances.getDistance(x, last)
+									+ this.distances.getDistance(first, y) - xy;
+							boolean reversed = reversedCost < forwardCost;
+							double gain = removeGain - (reversed ? reversedCost : forwardCost);
+							if (gain > MIN_GAIN) {
+								this.orOptMove(first, last, before, after, x, y, reversed);
+								this.push(first);
+								this.push(last);
+								this.push(before);
+								this.push(after);
+								this.push(x);
+								this.push(y);
+								return gain;
+							}
+						}
+					}
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Move the run from first to last, with before and after either side of
+	 * it, in between x and y, as three 2-opt moves
+	 * 
+	 * Starting from before [first..last] after ... x y, the first move gives
+	 * before x ... after [last..first] y, the second gives
+	 * before after ... x [last..first] y, and the third, if the run is to go
+	 * back in the same way round, turns the run round again.
+	 */
+	private void orOptMove(int first, int last, int before, int after, int x, int y, boolean reversed) {
+		this.twoOptMove(before, first, x, y);
+		this.twoOptMove(before, x, after, last);
+		if (reversed == false) {
+			this.twoOptMove(x, last, first, y);
+		}
+	}
+
+	/**
+	 * Replace the edges a-b and c-d with a-c and b-d, where b follows a and d
+	 * follows c in the same direction round the tour
+	 */
+	private void twoOptMove(int a, int b, int c, int d) {
+		if (this.next(a) == b) {
+			this.reverse(this.positions[b], this.positions[c]);
+		} else {
+			this.reverse(this.positions[a], this.positions[d]);
+		}
+	}
+
+	/**
+	 * Reverse the section of the tour running forward from one position to
+	 * another, wrapping round the end if need be. If the section is more than
+	 * half the tour, the rest of the tour is reversed instead, which gives
+	 * the same tour the other way round.
+	 */
+	private void reverse(int from, int to) {
+		int size = this.tour.length;
+		int length = to - from;
+		if (length < 0) {
+			length += size;
+		}
+		length++;
+		if (length * 2 > size) {
+			int rest = to + 1 == size ? 0 : to + 1;
+			to = from == 0 ? size - 1 : from - 1;
+			from = rest;
+			length = size - length;
+		}
+
+		for (int swaps = length / 2; swaps > 0; swaps--) {
+			int cityFrom = this.tour[from];
+			int cityTo = this.tour[to];
+			this.tour[from] = cityTo;
+			this.positions[cityTo] = from;
+			this.tour[to] = cityFrom;
+			this.positions[cityFrom] = to;
+			from = from + 1 == size ? 0 : from + 1;
+			to = to == 0 ? size - 1 : to - 1;
+		}
+	}
+
+	/**
+	 * Check whether a city is in the run of length cities starting at first
+	 */
+	private boolean inRun(int city, int first, int length) {
+		int distance = this.positions[city] - this.positions[first];
+		if (distance < 0) {
+			distance += this.tour.length;
+		}
+		return distance < length;
+	}
+
+	/**
+	 * Put a city on the queue, clearing its don't-look bit
+	 */
+	private void push(int city) {
+		if (this.queued[city]) {
+			return;
+		}
+		int size = this.tour.length;
+		int tail = this.queueHead + this.queueCount;
+		this.queue[tail >= size ? tail - size : tail] = city;
+		this.queueCount++;
+		this.queued[city] = true;
+	}
+
+	private int offset(int position, int steps) {
+		int size = this.tour.length;
+		position += steps;
+		if (position < 0) {
+			position += size;
+		} else if (position >= size) {
+			position -= size;
+		}
+		return position;
+	}
+
+	private int next(int city) {
+		int position = this.positions[city] + 1;
+		return this.tour[position == this.tour.length ? 0 : position];
+	}
+
+	private int previous(int city) {
+		int position = this.positions[city];
+		return this.tour[position == 0 ? this.tour.length - 1 : position - 1];
+	}
+}
@@ -0,0 +1,111 @@
+package chapter4;
+
+/**
+ * The k nearest cities to each city, nearest first.
+ * 
+ * Local search only tries joining a city to one of its near neighbours, since
+ * a good tour hardly ever has a long edge where a short one would do. That
+ * turns the O(n) scan for a partner city into an O(k) one.
+ * 
+ * The lists are kept in one flat array, k entries per city.
+ */
+public class NeighborLists {
+	private final int size;
+	private final int count;
+	private final int neighbors[];
+
+	/**
+	 * Find each city's nearest neighbours by checking every other city
+	 * 
+	 * This takes O(n^2) distance lookups, which is fine for thousands of
+	 * cities but not for hundreds of thousands; CityIndex.getNeighborLists
+	 * builds the same lists in O(n log n).
+	 * 
+	 * @param distances
+	 *            The distances between cities
+	 * @param count
+	 *            The number of neighbours to keep for each city; this is
+	 *            capped at the number of other cities
+	 */
+	public NeighborLists(DistanceProvider distances, int count) {
+		if (count < 1) {
+			throw new IllegalArgumentException("Need at least one neighbour per city, not " + count);
+		}
+		this.size = distances.size();
+		this.count = Math.min(count, Math.max(this.size - 1, 0));
+		this.neighbors = new int[this.size * this.count];
+
+		// Keep the nearest cities seen so far in sorted order, inserting each
+		// closer city into place
+		double nearest[] = new double[this.count];
+		for (int city = 0; city < this.size; city++) {
+			int base = city * this.count;
+			int found = 0;
+			for (int other = 0; other < this.size; other++) {
+				if (other == city) {
+					continue;
+				}
+				double distance = distances.getDistance(city, other);
+				if (found == this.count && distance >= nearest[found - 1]) {
+					continue;
+				}
+				int position = found < this.count ? found++ : found - 1;
+				while (position > 0 && nearest[position - 1] > distance) {
+					nearest[position] = nearest[position - 1];
+					this.neighbors[base + position] = this.neighbors[base + position - 1];
+					position--;
+				}
+				nearest[position] = distance;
+				this.neighbors[base + position] = other;
+			}
+		}
+	}
+
+	/**
+	 * Create lists that have already been worked out, for instance by a
+	 * CityIndex
+	 * 
+	 * @param neighbors
+	 *            count neighbours for each city, nearest first
+	 * @param size
+	 *            The number of cities
+	 * @param count
+	 *            The number of neighbours per city
+	 */
+	NeighborLists(int neighbors[], int size, int count) {
+		this.size = size;
+		this.count = count;
+		this.neighbors = neighbors;
+	}
+
+	/**
+	 * Get one of a city's neighbours
+	 * 
+	 * @param city
+	 *            The city
+	 * @param rank
+	 *            0 for the nearest neighbour, 1 for the next nearest, and so on
+	 * @return The neighbour's city index
+	 */
+	public int getNeighbor(int city, int rank) {
+		return this.neighbors[(city * this.count) + rank];
+	}
+
+	/**
+	 * Get the number of neighbours each city has
+	 * 
+	 * @return count
+	 */
+	public int getNeighborCount() {
+		return this.count;
+	}
+
+	/**
+	 * Get the number of cities
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return this.size;
+	}
+}
@@ -0,0 +1,226 @@
+package chapter4;
+
+/**
+ * Crossover operators for permutation chromosomes, where every gene from 0 to
+ * n - 1 appears exactly once, as in the TSP.
+ * 
+ * Every operator here runs in O(n) per offspring. Instead of asking the
+ * offspring whether it already contains a gene, which means scanning it, they
+ * keep a bitmap with one bit per gene value; and instead of searching for the
+ * next empty slot, they keep a cursor that only ever moves forward. The bitmap
+ * and the position table used by PMX and cycle crossover are reused from one
+ * offspring to the next, so crossover doesn't allocate.
+ * 
+ * An instance isn't safe to share between threads.
+ */
+public class PermutationCrossover {
+
+	/**
+	 * The crossover operators available
+	 */
+	public enum Type {
+		/**
+		 * Ordered crossover (OX): keep a slice of parent 1, and fill in the
+		 * rest with the remaining genes in the order they appear in parent 2,
+		 * starting just after the slice
+		 */
+		ORDERED,
+
+		/**
+		 * Partially mapped crossover (PMX): keep a slice of parent 1, and put
+		 * every other gene where parent 2 has it, unless the slice has taken
+		 * that position, in which case follow the mapping the slice defines
+		 * between the parents until a free position turns up
+		 */
+		PARTIALLY_MAPPED,
+
+		/**
+		 * Cycle crossover (CX): split the positions into the cycles that the
+		 * two parents define, and take alternate cycles from each parent, so
+		 * every gene stays at a position it holds in one of the parents
+		 */
+		CYCLE
+	}
+
+	/**
+	 * One bit per gene value, set once the offspring holds that gene
+	 */
+	private long present[] = new long[0];
+
+	/**
+	 * The position of each gene value in one of the parents
+	 */
+	private int positions[] = new int[0];
+
+	/**
+	 * Make sure the scratch space fits a chromosome length, and clear the
+	 * bitmap
+	 */
+	private void prepare(int length) {
+		int words = (length + 63) >>> 6;
+		if (this.present.length < words) {
+			this.present = new long[words];
+			this.positions = new int[length];
+		} else {
+			for (int word = 0; word < words; word++) {
+				this.present[word] = 0;
+			}
+			if (this.positions.length < length) {
+				this.positions = new int[length];
+			}
+		}
+	}
+
+	private boolean isPresent(int gene) {
+		return (this.present[gene >>> 6] & (1L << gene)) != 0;
+	}
+
+	private void markPresent(int gene) {
+		this.present[gene >>> 6] |= 1L << gene;
+	}
+
+	/**
+	 * Ordered crossover
+	 * 
+	 * This gives exactly the same offspring as the original scan-based
+	 * version: the slice [start, end) comes from parent 1, then parent 2 is
+	 * read from position end onwards, wrapping round, and each gene the
+	 * offspring doesn't have yet goes into the first empty slot.
+	 * 
+	 * @param parent1
+	 *            The parent the slice comes from
+	 * @param parent2
+	 *            The parent the other genes come from
+	 * @param offspring
+	 *            The individual to write the offspring into
+	 * @param start
+	 *            The first position of the slice
+	 * @param end
+	 *            The position after the last position of the slice
+	 */
+	public void ordered(Individual parent1, Individual parent2, Individual offspring, int start, int end) {
+		int length = parent1.getChromosomeLength();
+		this.prepare(length);
+
+		// Add the slice from parent1 to our child
+		for (int i = start; i < end; i++) {
+			int gene = parent1.getGene(i);
+			offspring.setGene(i, gene);
+			this.markPresent(gene);
+		}
+
+		// The empty slots are everything before the slice and then everything
+		// after it, so the cursor jumps over the slice when it gets there
+		int cursor = start == 0 ? end : 0;
+		int parent2Index = end;
+		for (int i = 0; i < length; i++) {
+			if (parent2Index >= length) {
+				parent2Index -= length;
+			}
+			int gene = parent2.getGene(parent2Index++);
+			if (this.isPresent(gene) == false) {
+				offspring.setGene(cursor++, gene);
+				if (cursor == start) {
+					cursor = end;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Partially mapped crossover
+	 * 
+	 * Following the mapping from a gene to a free position can pass through
+	 * several slice positions, but each slice position belongs to the chain
+	 * of at most one gene, so all the chains together take O(n) steps.
+	 * 
+	 * @param parent1
+	 *            The parent the slice comes from
+	 * @param parent2
+	 *            The parent the other genes come from
+	 * @param offspring
+	 *            The individual to write the offspring into
+	 * @param start
+	 *            The first position of the slice
+	 * @param end
+	 *            The position after the last position of the slice
+	 */
+	public void partiallyMapped(Individual parent1, Individual parent2, Individual offspring, int start, int end) {
+		int length = parent1.getChromosomeLength();
+		this.prepare(length);
+		for (int i = 0; i < length; i++) {
+			this.positions[parent2.getGene(i)] = i;
+		}
+
+		// Copy the slice from parent1, marking which positions it fills by
+		// putting their genes in the bitmap
+		for (int i = start; i < end; i++) {
+			int gene = parent1.getGene(i);
+			offspring.setGene(i, gene);
+			this.markPresent(gene);
+		}
+
+		// Place parent2's slice genes that parent1's slice displaced
+		for (int i = start; i < end; i++) {
+			int gene = parent2.getGene(i);
+			if (this.isPresent(gene)) {
+				continue;
+			}
+			int position = i;
+			while (position >= start && position < end) {
+				position = this.positions[parent1.getGene(position)];
+			}
+			offspring.setGene(position, gene);
+			this.markPresent(gene);
+		}
+
+		// Everything else comes straight from parent2, wherever there's room
+		for (int i = 0; i < length; i++) {
+			if (i == start) {
+				i = end;
+				if (i >= length) {
+					break;
+				}
+			}
+			int gene = parent2.getGene(i);
+			if (this.isPresent(gene) == false) {
+				offspring.setGene(i, gene);
+			}
+		}
+	}
+
+	/**
+	 * Cycle crossover
+	 * 
+	 * @param parent1
+	 *            The parent the first cycle comes from
+	 * @param parent2
+	 *            The parent the second cycle comes from
+	 * @param offspring
+	 *            The individual to write the offspring into
+	 */
+	public void cycle(Individual parent1, Individual parent2, Individual offspring) {
+		int length = parent1.getChromosomeLength();
+		this.prepare(length);
+		for (int i = 0; i < length; i++) {
+			this.positions[parent1.getGene(i)] = i;
+		}
+
+		// Here the bitmap marks the positions that have been filled, and the
+		// cursor finds the start of the next cycle
+		boolean fromParent1 = true;
+		for (int cursor = 0; cursor < length; cursor++) {
+			if (this.isPresent(cursor)) {
+				continue;
+			}
+			Individual source = fromParent1 ? parent1 : parent2;
+			int position = cursor;
+			do {
+				offspring.setGene(position, source.getGene(position));
+				this.markPresent(position);
+				position = this.positions[parent2.getGene(position)];
+			} while (position != cursor);
+			fromParent1 = !fromParent1;
+		}
+	}
+}
@@ -1,12 +1,47 @@
 package chapter4;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Random;
 
+/**
+ * The population keeps its individuals in a "struct of arrays" layout: every
+ * chromosome lives back to back in one int array, and every fitness value
+ * lives in one double array. The Individual objects handed out by the
+ * population are lightweight views over their slot in those arrays.
+ * 
+ * Keeping the genes contiguous means that walking the population walks memory
+ * in order, and there's no separate array object (and header) per
+ * individual. Ranking the population by fitness sorts a permutation of slot
+ * indices using the fitness array, rather than moving objects around.
+ */
 public class Population {
 	private Individual population[];
 	private double populationFitness = -1;
 
+	/**
+	 * The gene store, one chromosome of chromosomeLength genes per slot, and
+	 * the fitness of each slot along with whether it's stale and the tour
+	 * length it was calculated from, if that's known. These are
+	 * allocated when the chromosome length is known; for a blank population
+	 * that's when the first individual is set.
+	 */
+	private int chromosomeLength = -1;
+	private int chromosomes[];
+	private double fitness[];
+	private boolean fitnessStale[];
+	private double tourLength[];
+
+	/**
+	 * Slot indices ordered from the fittest to the weakest, plus a scratch
+	 * buffer to sort them with
+	 */
+	private int ranking[];
+	private int rankingScratch[];
+
+	/**
+	 * Whether the ranking is up to date. Once it has been sorted, getFittest
+	 * can simply index into it until either the membership of the population
+	 * or the fitness values change.
+	 */
+	private boolean ranked = false;
+
 	/**
 	 * Initializes blank population of individuals
 	 * 
@@ -29,13 +64,46 @@ public class Population {
 	public Population(int populationSize, int chromosomeLength) {
 		// Initial population
 		this.population = new Individual[populationSize];
+		this.allocateStore(chromosomeLength);
 
 		// Loop over population size
 		for (int individualCount = 0; individualCount < populationSize; individualCount++) {
-			// Create individual
-			Individual individual = new Individual(chromosomeLength);
-			// Add individual to population
-			this.population[individualCount] = individual;
+			// Initialize each individual to visit the cities in order, as the
+			// Individual(int) constructor does
+			Individual individual = this.population[individualCount];
+			for (int gene = 0; gene < chromosomeLength; gene++) {
+				individual.setGene(gene, gene);
+			}
+		}
+	}
+
+	/**
+	 * Allocate the gene and fitness store, and create a view for each slot
+	 * 
+	 * @param chromosomeLength
+	 *            The length of the individuals chromosome
+	 */
+	private void allocateStore(int chromosomeLength) {
+		int populationSize = this.population.length;
+		long genes = (long) populationSize * chromosomeLength;
+		if (genes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many genes for one population: " + populationSize
+					+ " individuals of " + chromosomeLength + " genes");
+		}
+		this.chromosomeLength = chromosomeLength;
+		this.chromosomes = new int[(int) genes];
+		this.fitness = new double[populationSize];
+		this.fitnessStale = new boolean[populationSize];
+		this.tourLength = new double[populationSize];
+		this.ranking = new int[populationSize];
+		this.rankingScratch = new int[populationSize];
+
+		for (int slot = 0; slot < populationSize; slot++) {
+			this.fitness[slot] = -1;
+			this.fitnessStale[slot] = true;
+			this.tourLength[slot] = Double.NaN;
+			this.population[slot] = new Individual(this, this.chromosomes, this.fitness, this.fitnessStale,
+					this.tourLength, slot, chromosomeLength);
 		}
 	}
 
@@ -55,21 +123,70 @@ public class Population {
 	 * @return individual Fittest individual at offset
 	 */
 	public Individual getFittest(int offset) {
-		// Order population by fitness
-		Arrays.sort(this.population, new Comparator<Individual>() {
-			@Override
-			public int compare(Individual o1, Individual o2) {
-				if (o1.getFitness() > o2.getFitness()) {
-					return -1;
-				} else if (o1.getFitness() < o2.getFitness()) {
-					return 1;
+		// Order population by fitness, unless it's already in order
+		if (this.ranked == false) {
+			this.sortRanking();
+			this.ranked = true;
+		}
+
+		// Return the fittest individual
+		return this.population[this.ranking[offset]];
+	}
+
+	/**
+	 * Sort the slot indices from the fittest to the weakest.
+	 * 
+	 * This is a bottom-up merge sort over the int permutation, comparing
+	 * entries in the fitness array. It's stable, so individuals with equal
+	 * fitness keep their slot order, and it doesn't allocate.
+	 */
+	private void sortRanking() {
+		int size = this.ranking.length;
+		int source[] = this.ranking;
+		int target[] = this.rankingScratch;
+		for (int slot = 0; slot < size; slot++) {
+			source[slot] = slot;
+		}
+
+		for (int width = 1; width < size; width *= 2) {
+			for (int low = 0; low < size; low += 2 * width) {
+				int middle = Math.min(low + width, size);
+				int high = Math.min(low + 2 * width, size);
+				int left = low;
+				int right = middle;
+				int out = low;
+				while (left < middle && right < high) {
+					// Only take from the right run if it's strictly fitter
+					if (this.fitness[source[right]] > this.fitness[source[left]]) {
+						target[out++] = source[right++];
+					} else {
+						target[out++] = source[left++];
+					}
+				}
+				while (left < middle) {
+					target[out++] = source[left++];
+				}
+				while (right < high) {
+					target[out++] = source[right++];
 				}
-				return 0;
 			}
-		});
+			int swap[] = source;
+			source = target;
+			target = swap;
+		}
 
-		// Return the fittest individual
-		return this.population[offset];
+		this.ranking = source;
+		this.rankingScratch = target;
+	}
+
+	/**
+	 * Discard the cached fitness ordering
+	 * 
+	 * Individuals that belong to this population call this themselves whenever
+	 * their fitness changes, so it's rarely necessary to call it directly.
+	 */
+	public void invalidateRanking() {
+		this.ranked = false;
 	}
 
 	/**
@@ -80,6 +197,8 @@ public class Population {
 	 */
 	public void setPopulationFitness(double fitness) {
 		this.populationFitness = fitness;
+		// Individuals have just been re-evaluated, so the ranking is stale
+		this.ranked = false;
 	}
 
 	/**
@@ -100,15 +219,37 @@ public class Population {
 		return this.population.length;
 	}
 
+	/**
+	 * Get the length of the chromosomes in this population
+	 * 
+	 * @return chromosomeLength, or -1 if a blank population has no members yet
+	 */
+	public int getChromosomeLength() {
+		return this.chromosomeLength;
+	}
+
 	/**
 	 * Set individual at offset
 	 * 
+	 * The individual's genes and fitness are copied into the population's store
+	 * at the given slot, so the returned individual is the population's view
+	 * of that slot rather than the object that was passed in.
+	 * 
 	 * @param individual
 	 * @param offset
 	 * @return individual
 	 */
 	public Individual setIndividual(int offset, Individual individual) {
-		return population[offset] = individual;
+		if (this.chromosomes == null) {
+			this.allocateStore(individual.getChromosomeLength());
+		}
+		this.ranked = false;
+
+		Individual member = this.population[offset];
+		if (member != individual) {
+			member.copyFrom(individual);
+		}
+		return member;
 	}
 
 	/**
@@ -124,17 +265,57 @@ public class Population {
 	/**
 	 * Shuffles the population in-place
 	 * 
-	 * @param void
-	 * @return void
+	 * Each individual is tied to its slot in the store, so this moves genes and
+	 * fitness values between slots rather than reordering the views.
+	 * 
+	 * @param random
+	 *            The source of randomness for the shuffle
 	 */
-	public void shuffle() {
-		Random rnd = new Random();
+	public void shuffle(RandomSource random) {
+		this.ranked = false;
+		if (this.chromosomes == null) {
+			return;
+		}
 		for (int i = population.length - 1; i > 0; i--) {
-			int index = rnd.nextInt(i + 1);
-			Individual a = population[index];
-			population[index] = population[i];
-			population[i] = a;
+			int index = random.nextInt(i + 1);
+			this.swapSlots(index, i);
+		}
+	}
+
+	/**
+	 * Shuffles the population in-place using the default random source
+	 */
+	public void shuffle() {
+		this.shuffle(RandomSource.getDefault());
+	}
+
+	/**
+	 * Exchange the contents of two slots, including their fitness and tour
+	 * length
+	 * 
+	 * @param slotA
+	 * @param slotB
+	 */
+	private void swapSlots(int slotA, int slotB) {
+		if (slotA == slotB) {
+			return;
+		}
+		int offsetA = slotA * this.chromosomeLength;
+		int offsetB = slotB * this.chromosomeLength;
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			int a = this.chromosomes[offsetA + gene];
+			this.chromosomes[offsetA + gene] = this.chromosomes[offsetB + gene];
+			this.chromosomes[offsetB + gene] = a;
 		}
+		double fitnessA = this.fitness[slotA];
+		this.fitness[slotA] = this.fitness[slotB];
+		this.fitness[slotB] = fitnessA;
+		boolean staleA = this.fitnessStale[slotA];
+		this.fitnessStale[slotA] = this.fitnessStale[slotB];
+		this.fitnessStale[slotB] = staleA;
+		double tourLengthA = this.tourLength[slotA];
+		this.tourLength[slotA] = this.tourLength[slotB];
+		this.tourLength[slotB] = tourLengthA;
 	}
 
-}
\ No newline at end of file
+}
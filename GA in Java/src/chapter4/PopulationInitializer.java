@@ -0,0 +1,490 @@
+package chapter4;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills a population with starting tours.
+ * 
+ * Population(int, int) starts every individual on the same tour, visiting the
+ * cities in index order, so the GA spends its first few hundred generations
+ * just creating diversity. An initializer gives each individual a tour of its
+ * own, built by one of these strategies:
+ * 
+ * RANDOM: a uniformly random permutation, from a Fisher-Yates shuffle.
+ * 
+ * NEAREST_NEIGHBOR: start at a random city and keep going to the nearest city
+ * not yet visited. This gives tours about 25% longer than optimal.
+ * 
+ * GREEDY_EDGE: keep adding the shortest edge that doesn't give a city three
+ * edges or close a loop too early, then join the pieces up. This gives tours
+ * around 15-20% longer than optimal. Every edge length is stretched by a
+ * random factor of up to 1 + noise first, so that greedy tours differ from
+ * one another.
+ * 
+ * The strategies can be mixed: each has a weight, and the population's slots
+ * are shared out between the strategies in proportion to their weights. Only
+ * RANDOM has any weight to begin with.
+ * 
+ * Both the nearest neighbour and the greedy edge tours work from
+ * NeighborLists, so neither looks at all n^2 pairs of cities: the nearest
+ * unvisited city is usually in the current city's list, and greedy only
+ * considers the edges from each city to its neighbours. Every tour is built
+ * from its own RandomSource, seeded from the one passed to initialize, so
+ * tours for big instances are built in parallel and still come out the same
+ * every run.
+ */
+public class PopulationInitializer {
+
+	/**
+	 * The ways of building a tour
+	 */
+	public enum Strategy {
+		/**
+		 * A uniformly random permutation
+		 */
+		RANDOM,
+
+		/**
+		 * A nearest-neighbour tour from a random start city
+		 */
+		NEAREST_NEIGHBOR,
+
+		/**
+		 * A greedy-edge tour, over randomly stretched edge lengths
+		 */
+		GREEDY_EDGE
+	}
+
+	private final DistanceProvider distances;
+	private final NeighborLists neighbors;
+	private final ForkJoinPool pool;
+	private final double weights[] = { 1, 0, 0 };
+	private double greedyNoise = 0.1;
+
+	/**
+	 * Instances with fewer cities than this are initialised on the calling
+	 * thread, since building their tours takes less time than forking
+	 */
+	private int parallelThreshold = 2000;
+
+	/**
+	 * Create an initializer that runs on the common fork/join pool
+	 * 
+	 * @param distances
+	 *            The distances between cities
+	 * @param neighbors
+	 *            Each city's nearest neighbours
+	 */
+	public PopulationInitializer(DistanceProvider distances, NeighborLists neighbors) {
+		this(distances, neighbors, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create an initializer
+	 * 
+	 * @param distances
+	 *            The distances between cities
+	 * @param neighbors
+	 *            Each city's nearest neighbours
+	 * @param pool
+	 *            The pool to build tours on
+	 */
+	public PopulationInitializer(DistanceProvider distances, NeighborLists neighbors, ForkJoinPool pool) {
+		if (neighbors.size() != distances.size()) {
+			throw new IllegalArgumentException("Neighbour lists are for " + neighbors.size()
+					+ " cities, but there are distances for " + distances.size());
+		}
+		this.distances = distances;
+		this.neighbors = neighbors;
+		this.pool = pool;
+	}
+
+	/**
+	 * Set how much of the population a strategy builds, relative to the other
+	 * strategies
+	 * 
+	 * @param strategy
+	 *            The strategy
+	 * @param weight
+	 *            Its weight, which must not be negative
+	 */
+	public void setWeight(Strategy strategy, double weight) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("Weights can't be negative: " + weight);
+		}
+		this.weights[strategy.ordinal()] = weight;
+	}
+
+	/**
+	 * Set how far greedy edge construction can stretch each edge, as a
+	 * fraction of its length. The default is 0.1; 0 makes every greedy tour
+	 * the same.
+	 * 
+	 * @param greedyNoise
+	 */
+	public void setGreedyNoise(double greedyNoise) {
+		this.greedyNoise = Math.max(0, greedyNoise);
+	}
+
+	/**
+	 * Set the number of cities from which tours are built in parallel
+	 * 
+	 * @param parallelThreshold
+	 */
+	public void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Get the strategy that builds a slot's tour
+	 * 
+	 * The slots are shared out in order: the first ones go to RANDOM, then
+	 * NEAREST_NEIGHBOR, then GREEDY_EDGE, each getting its share of the
+	 * population rounded to the nearest slot.
+	 * 
+	 * @param slot
+	 *            The slot
+	 * @param populationSize
+	 *            The size of the population
+	 * @return The slot's strategy
+	 */
+	public Strategy getStrategy(int slot, int populationSize) {
+		double total = 0;
+		for (double weight : this.weights) {
+			total += weight;
+		}
+		if (total == 0) {
+			throw new IllegalStateException("Every strategy has a weight of 0");
+		}
+
+		double cumulative = 0;
+		Strategy strategies[] = Strategy.values();
+		for (int i = 0; i < strategies.length; i++) {
+			cumulative += this.weights[i];
+			if (slot < Math.round(populationSize * (cumulative / total))) {
+				return strategies[i];
+			}
+		}
+		return strategies[strategies.length - 1];
+	}
+
+	/**
+	 * Give every individual in a population a new tour
+	 * 
+	 * @param population
+	 *            The population, whose chromosome length must be the number
+	 *            of cities
+	 * @param random
+	 *            The source of the seed for each tour
+	 */
+	public void initialize(Population population, RandomSource random) {
+		if (population.getChromosomeLength() != this.distances.size()) {
+			throw new IllegalArgumentException("Population has " + population.getChromosomeLength()
+					+ " genes per individual, but there are " + this.distances.size() + " cities");
+		}
+
+		// Seed every tour up front, so they don't depend on which thread
+		// builds them
+		long seeds[] = new long[population.size()];
+		random.nextLongs(seeds, seeds.length);
+
+		TourTask task = new TourTask(population, seeds, 0, population.size());
+		if (this.distances.size() < this.parallelThreshold) {
+			task.compute();
+		} else {
+			this.pool.invoke(task);
+		}
+		population.invalidateRanking();
+	}
+
+	/**
+	 * Build one tour
+	 * 
+	 * @param strategy
+	 *            The strategy to build it with
+	 * @param random
+	 *            The source of randomness for the tour
+	 * @return The tour, as a permutation of the city indices
+	 */
+	public int[] buildTour(Strategy strategy, RandomSource random) {
+		if (strategy == Strategy.NEAREST_NEIGHBOR) {
+			return this.nearestNeighborTour(random);
+		} else if (strategy == Strategy.GREEDY_EDGE) {
+			return this.greedyEdgeTour(random);
+		}
+		return this.randomTour(random);
+	}
+
+	private int[] randomTour(RandomSource random) {
+		int size = this.distances.size();
+		int tour[] = new int[size];
+		for (int i = 0; i < size; i++) {
+			tour[i] = i;
+		}
+		for (int i = size - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = tour[i];
+			tour[i] = tour[j];
+			tour[j] = swap;
+		}
+		return tour;
+	}
+
+	/**
+	 * Build a nearest-neighbour tour
+	 * 
+	 * If any of the current city's neighbours are unvisited, the first of them
+	 * in the list is the nearest unvisited city. Only when all of them have
+	 * been visited do we scan the cities that are left, which are kept in an
+	 * array with unvisited cities swapped out of it as they're visited.
+	 */
+	private int[] nearestNeighborTour(RandomSource random) {
+		int size = this.distances.size();
+		int tour[] = new int[size];
+		if (size == 0) {
+			return tour;
+		}
+		int remaining[] = new int[size];
+		int remainingIndex[] = new int[size];
+		for (int city = 0; city < size; city++) {
+			remaining[city] = city;
+			remainingIndex[city] = city;
+		}
+		int remainingCount = size;
+
+		int city = random.nextInt(size);
+		for (int position = 0; position < size; position++) {
+			tour[position] = city;
+
+			// Swap the city out of the unvisited cities
+			int index = remainingIndex[city];
+			int last = remaining[--remainingCount];
+			remaining[index] = last;
+			remainingIndex[last] = index;
+			remainingIndex[city] = -1;
+			if (remainingCount == 0) {
+				break;
+			}
+
+			int next = -1;
+			for (int rank = 0; rank < this.neighbors.getNeighborCount(); rank++) {
+				int neighbor = this.neighbors.getNeighbor(city, rank);
+				if (remainingIndex[neighbor] >= 0) {
+					next = neighbor;
+					break;
+				}
+			}
+			if (next < 0) {
+				double nearest = Double.POSITIVE_INFINITY;
+				for (int i = 0; i < remainingCount; i++) {
+					double distance = this.distances.getDistance(city, remaining[i]);
+					if (distance < nearest) {
+						nearest = distance;
+						next = remaining[i];
+					}
+				}
+			}
+			city = next;
+		}
+		return tour;
+	}
+
+	/**
+	 * Build a greedy-edge tour
+	 * 
+	 * The candidate edges are those from each city to its neighbours. They're
+	 * sorted by stretched length, packed into longs as the float bits of the
+	 * length above the edge's index, which sorts them without boxing. Taking
+	 * an edge needs both cities to have fewer than two edges, and the cities
+	 * to be in different fragments, which a union-find keeps track of. The
+	 * fragments left at the end are joined up nearest-neighbour style, from
+	 * the end of one fragment to the nearest free end of another.
+	 */
+	private int[] greedyEdgeTour(RandomSource random) {
+		int size = this.distances.size();
+		int count = this.neighbors.getNeighborCount();
+		if (size < 3) {
+			return this.randomTour(random);
+		}
+
+		// Each edge once, from the lower city index
+		int edgeFrom[] = new int[size * count];
+		int edgeTo[] = new int[size * count];
+		long keys[] = new long[size * count];
+		int edges = 0;
+		for (int city = 0; city < size; city++) {
+			for (int rank = 0; rank < count; rank++) {
+				int neighbor = this.neighbors.getNeighbor(city, rank);
+				if (neighbor < city && this.isNeighbor(neighbor, city)) {
+					// Already added from the other end
+					continue;
+				}
+				double length = this.distances.getDistance(city, neighbor);
+				if (this.greedyNoise > 0) {
+					length *= 1 + (this.greedyNoise * random.nextDouble());
+				}
+				edgeFrom[edges] = city;
+				edgeTo[edges] = neighbor;
+				keys[edges] = ((long) Float.floatToIntBits((float) length) << 32) | edges;
+				edges++;
+			}
+		}
+		Arrays.sort(keys, 0, edges);
+
+		int links[] = new int[size * 2];
+		Arrays.fill(links, -1);
+		int fragments[] = new int[size];
+		for (int city = 0; city < size; city++) {
+			fragments[city] = city;
+		}
+		int added = 0;
+		for (int i = 0; i < edges && added < size - 1; i++) {
+			int edge = (int) keys[i];
+			int a = edgeFrom[edge];
+			int b = edgeTo[edge];
+			if (links[(a * 2) + 1] >= 0 || links[(b * 2) + 1] >= 0) {
+				continue;
+			}
+			int rootA = PopulationInitializer.find(fragments, a);
+			int rootB = PopulationInitializer.find(fragments, b);
+			if (rootA == rootB) {
+				continue;
+			}
+			fragments[rootA] = rootB;
+			links[(a * 2) + (links[a * 2] >= 0 ? 1 : 0)] = b;
+			links[(b * 2) + (links[b * 2] >= 0 ? 1 : 0)] = a;
+			added++;
+		}
+
+		// The free ends are the cities with fewer than two edges
+		int ends[] = new int[size];
+		int endIndex[] = new int[size];
+		int endCount = 0;
+		for (int city = 0; city < size; city++) {
+			endIndex[city] = -1;
+			if (links[(city * 2) + 1] < 0) {
+				endIndex[city] = endCount;
+				ends[endCount++] = city;
+			}
+		}
+
+		int tour[] = new int[size];
+		int position = 0;
+		int end = ends[random.nextInt(endCount)];
+		while (true) {
+			// Walk the fragment from this end to the other
+			int previous = -1;
+			int city = end;
+			while (city >= 0) {
+				tour[position++] = city;
+				if (endIndex[city] >= 0) {
+					// Neither end of a fragment is free once it's in the tour
+					int index = endIndex[city];
+					int last = ends[--endCount];
+					ends[index] = last;
+					endIndex[last] = index;
+					endIndex[city] = -1;
+				}
+				int next = links[city * 2] != previous ? links[city * 2] : links[(city * 2) + 1];
+				previous = city;
+				city = next;
+			}
+			if (endCount == 0) {
+				break;
+			}
+
+			// Go on to the nearest free end
+			end = -1;
+			for (int rank = 0; rank < count; rank++) {
+				int neighbor = this.neighbors.getNeighbor(previous, rank);
+				if (endIndex[neighbor] >= 0) {
+					end = neighbor;
+					break;
+				}
+			}
+			if (end < 0) {
+				double nearest = Double.POSITIVE_INFINITY;
+				for (int i = 0; i < endCount; i++) {
+					double distance = this.distances.getDistance(previous, ends[i]);
+					if (distance < nearest) {
+						nearest = distance;
+						end = ends[i];
+					}
+				}
+			}
+		}
+		return tour;
+	}
+
+	/**
+	 * Check whether a city is in another city's neighbour list
+	 */
+	private boolean isNeighbor(int city, int neighbor) {
+		for (int rank = 0; rank < this.neighbors.getNeighborCount(); rank++) {
+			if (this.neighbors.getNeighbor(city, rank) == neighbor) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the root of a city's fragment, halving the path on the way
+	 */
+	private static int find(int fragments[], int city) {
+		while (fragments[city] != city) {
+			fragments[city] = fragments[fragments[city]];
+			city = fragments[city];
+		}
+		return city;
+	}
+
+	/**
+	 * Builds the tours for a range of slots, splitting it in half until it's
+	 * down to one slot
+	 */
+	private final class TourTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final long seeds[];
+		private final int from;
+		private final int to;
+
+		TourTask(Population population, long seeds[], int from, int to) {
+			this.population = population;
+			this.seeds = seeds;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= 1 || PopulationInitializer.this.distances
+					.size() < PopulationInitializer.this.parallelThreshold) {
+				for (int slot = this.from; slot < this.to; slot++) {
+					this.initialize(slot);
+				}
+				return;
+			}
+
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new TourTask(this.population, this.seeds, this.from, middle),
+					new TourTask(this.population, this.seeds, middle, this.to));
+		}
+
+		private void initialize(int slot) {
+			Strategy strategy = PopulationInitializer.this.getStrategy(slot, this.population.size());
+			// Created on the thread that uses it, so it draws from the seed's
+			// own stream
+			RandomSource random = new RandomSource(this.seeds[slot]);
+			int tour[] = PopulationInitializer.this.buildTour(strategy, random);
+			Individual individual = this.population.getIndividual(slot);
+			for (int gene = 0; gene < tour.length; gene++) {
+				individual.setGene(gene, tour[gene]);
+			}
+		}
+	}
+}
@@ -23,12 +23,10 @@ public class Route {
 	 *            The cities referenced
 	 */
 	public Route(Individual individual, City cities[]) {
-		// Get individual's chromosome
-		int chromosome[] = individual.getChromosome();
-		// Create route
+		// Create route from the individual's chromosome
 		this.route = new City[cities.length];
-		for (int geneIndex = 0; geneIndex < chromosome.length; geneIndex++) {
-			this.route[geneIndex] = cities[chromosome[geneIndex]];
+		for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+			this.route[geneIndex] = cities[individual.getGene(geneIndex)];
 		}
 	}
 
@@ -53,4 +51,59 @@ public class Route {
 
 		return totalDistance;
 	}
+
+	/**
+	 * Calculate the distance of the route encoded by an individual, reading its
+	 * genes directly instead of building a Route. This is what the GA uses to
+	 * evaluate fitness, since it allocates nothing.
+	 * 
+	 * @param individual
+	 *            A GA individual
+	 * @param cities
+	 *            The cities referenced
+	 * @return distance The route's distance
+	 */
+	public static double getDistance(Individual individual, City cities[]) {
+		int length = individual.getChromosomeLength();
+		City first = cities[individual.getGene(0)];
+		City previous = first;
+
+		// Loop over cities in route and calculate route distance
+		double totalDistance = 0;
+		for (int geneIndex = 1; geneIndex < length; geneIndex++) {
+			City city = cities[individual.getGene(geneIndex)];
+			totalDistance += previous.distanceFrom(city);
+			previous = city;
+		}
+
+		totalDistance += previous.distanceFrom(first);
+		return totalDistance;
+	}
+
+	/**
+	 * Calculate the distance of the route encoded by an individual, looking
+	 * each leg up in a distance provider rather than working it out
+	 * 
+	 * @param individual
+	 *            A GA individual
+	 * @param distances
+	 *            The distances between the cities referenced
+	 * @return distance The route's distance
+	 */
+	public static double getDistance(Individual individual, DistanceProvider distances) {
+		int length = individual.getChromosomeLength();
+		int first = individual.getGene(0);
+		int previous = first;
+
+		// Loop over cities in route and add up route distance
+		double totalDistance = 0;
+		for (int geneIndex = 1; geneIndex < length; geneIndex++) {
+			int city = individual.getGene(geneIndex);
+			totalDistance += distances.getDistance(previous, city);
+			previous = city;
+		}
+
+		totalDistance += distances.getDistance(previous, first);
+		return totalDistance;
+	}
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package chapter4;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 /**
  * Main, executive class for the Traveling Salesman Problem.
  * 
@@ -11,63 +14,100 @@ package chapter4;
  * crossover and mutation. Check out the GeneticAlgorithm class for
  * implementations of crossover and mutation for this problem.
  * 
+ * To solve a real instance instead, pass a TSPLIB or binary instance file
+ * (see TSPFile), and optionally a file to write the best tour to:
+ * 
+ * TSP [instanceFile [tourFile]]
+ * 
  * @author bkanber
- *
+ * 
  */
 public class TSP {
 	public static int maxGenerations = 10000;
-	public static void main(String[] args) {
-		
-		// Create cities
-		int numCities = 100;
-		City cities[] = new City[numCities];
+	public static void main(String[] args) throws IOException {
+		// Every random number in the run comes from here
+		RandomSource random = new RandomSource();
 		
-		// Loop to create random cities
-		for (int cityIndex = 0; cityIndex < numCities; cityIndex++) {
-			// Generate x,y position
-			int xPos = (int) (100 * Math.random());
-			int yPos = (int) (100 * Math.random());
+		City cities[] = null;
+		DistanceProvider distances;
+		if (args.length > 0) {
+			// Load the instance; it works out its own distances
+			TSPInstance instance = TSPFile.read(Paths.get(args[0]));
+			System.out.println("Loaded " + instance.getName() + " with " + instance.size() + " cities");
+			distances = instance;
+		} else {
+			// Create cities
+			int numCities = 100;
+			cities = new City[numCities];
 			
-			// Add city
-			cities[cityIndex] = new City(xPos, yPos);
+			// Loop to create random cities
+			for (int cityIndex = 0; cityIndex < numCities; cityIndex++) {
+				// Generate x,y position
+				int xPos = random.nextInt(100);
+				int yPos = random.nextInt(100);
+				
+				// Add city
+				cities[cityIndex] = new City(xPos, yPos);
+			}
+
+			// Work out the distance between every pair of cities once, rather
+			// than every time a route is evaluated
+			distances = new DistanceMatrix(cities);
 		}
 
 		// Initial GA
-		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.9, 2, 5);
+		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.9, 2, 5, random);
 
 		// Initialize population
-		Population population = ga.initPopulation(cities.length);
+		Population population = ga.initPopulation(distances.size());
 
 		// Evaluate population
-		ga.evalPopulation(population, cities);
+		ga.evalPopulation(population, distances);
 
-		Route startRoute = new Route(population.getFittest(0), cities);
-		System.out.println("Start Distance: " + startRoute.getDistance());
+		System.out.println("Start Distance: " + TSP.getDistance(population.getFittest(0), cities, distances));
 
 		// Keep track of current generation
 		int generation = 1;
 		// Start evolution loop
 		while (ga.isTerminationConditionMet(generation, maxGenerations) == false) {
 			// Print fittest individual from population
-			Route route = new Route(population.getFittest(0), cities);
-			System.out.println("G"+generation+" Best distance: " + route.getDistance());
+			System.out.println("G"+generation+" Best distance: "
+					+ TSP.getDistance(population.getFittest(0), cities, distances)
+					+ " Skipped evaluations: " + ga.getLastSkippedCount());
 
 			// Apply crossover
 			population = ga.crossoverPopulation(population);
 
-			// Apply mutation
-			population = ga.mutatePopulation(population);
+			// Apply mutation, carrying tour lengths forward
+			population = ga.mutatePopulation(population, distances);
 
 			// Evaluate population
-			ga.evalPopulation(population, cities);
+			ga.evalPopulation(population, distances);
 
 			// Increment the current generation
 			generation++;
 		}
 		
 		System.out.println("Stopped after " + maxGenerations + " generations.");
-		Route route = new Route(population.getFittest(0), cities);
-		System.out.println("Best distance: " + route.getDistance());
+		System.out.println("Evaluations: " + ga.getTotalEvaluatedCount() + " (" + ga.getTotalSkippedCount()
+				+ " skipped)");
+		double bestDistance = TSP.getDistance(population.getFittest(0), cities, distances);
+		System.out.println("Best distance: " + bestDistance);
 
+		if (args.length > 1) {
+			TSPFile.writeTour(population.getFittest(0), "best", bestDistance, Paths.get(args[1]));
+			System.out.println("Wrote best tour to " + args[1]);
+		}
+	}
+
+	/**
+	 * Get the length of a route, from the cities' coordinates if we have
+	 * them, as the book does, or else from the instance's distances
+	 */
+	private static double getDistance(Individual individual, City cities[], DistanceProvider distances) {
+		if (cities != null) {
+			return new Route(individual, cities).getDistance();
+		}
+		return Route.getDistance(individual, distances);
 	}
 }
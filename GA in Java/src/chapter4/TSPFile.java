@@ -0,0 +1,612 @@
+package chapter4;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes TSP instances, and writes tours.
+ * 
+ * TSPLIB files are read from a memory-mapped copy of the file with a small
+ * hand-written number parser, rather than line by line through a Reader, so
+ * there's no String or boxed number per value. The header keywords NAME, TYPE
+ * (only TSP), DIMENSION, EDGE_WEIGHT_TYPE (EUC_2D, CEIL_2D, GEO or EXPLICIT)
+ * and EDGE_WEIGHT_FORMAT (any of the matrix layouts) are understood, along
+ * with NODE_COORD_SECTION and EDGE_WEIGHT_SECTION. Other keywords and
+ * sections, such as display data, are skipped.
+ * 
+ * The binary format is a 32 byte header followed by the instance's arrays,
+ * all little-endian, so loading it is just a matter of copying the mapped
+ * file into arrays:
+ * 
+ * offset 0: the bytes "TSPB"
+ * offset 4: int format version, currently 1
+ * offset 8: int number of cities
+ * offset 12: int distance type, as the DistanceType's ordinal
+ * offset 16: 16 reserved bytes, written as 0
+ * offset 32: the x positions then the y positions, as doubles; or for an
+ * EXPLICIT instance, the lower triangle of the distance matrix, as doubles
+ * 
+ * The binary format doesn't keep the instance's name, so an instance read
+ * from it is named after the file.
+ */
+public class TSPFile {
+	private static final int MAGIC = 0x42505354;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+
+	/**
+	 * The most we map or buffer at once. A single mapping can't be bigger
+	 * than 2GB, so big arrays are read in pieces.
+	 */
+	private static final int MAX_MAP_BYTES = 1 << 30;
+	private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * Read an instance in either format. Files that start with "TSPB" are
+	 * binary; anything else is read as TSPLIB.
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return TSPInstance The instance
+	 * @throws IOException
+	 *             If the file can't be read or isn't a valid instance
+	 */
+	public static TSPInstance read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				// Keep reading until we have all four bytes or hit the end
+			}
+			if (magic.hasRemaining() == false && magic.getInt(0) == MAGIC) {
+				return TSPFile.readBinary(channel, path);
+			}
+			return TSPFile.readTsplib(channel, path);
+		}
+	}
+
+	/**
+	 * Read an instance from a TSPLIB file
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return TSPInstance The instance
+	 * @throws IOException
+	 *             If the file can't be read or isn't an instance we support
+	 */
+	public static TSPInstance readTsplib(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return TSPFile.readTsplib(channel, path);
+		}
+	}
+
+	private static TSPInstance readTsplib(FileChannel channel, Path path) throws IOException {
+		if (channel.size() > Integer.MAX_VALUE) {
+			throw new IOException(path + ": too big to read as a TSPLIB file; convert it to binary");
+		}
+		ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		return new TsplibParser(buffer, path).parse();
+	}
+
+	/**
+	 * Read an instance from a binary file
+	 * 
+	 * @param path
+	 *            The file to read
+	 * @return TSPInstance The instance
+	 * @throws IOException
+	 *             If the file can't be read or isn't a valid binary instance
+	 */
+	public static TSPInstance readBinary(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return TSPFile.readBinary(channel, path);
+		}
+	}
+
+	private static TSPInstance readBinary(FileChannel channel, Path path) throws IOException {
+		if (channel.size() < HEADER_BYTES) {
+			throw new IOException(path + ": too short to be a binary TSP file");
+		}
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException(path + ": not a binary TSP file");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException(path + ": unsupported binary TSP file version " + header.getInt(4));
+		}
+		int size = header.getInt(8);
+		int typeCode = header.getInt(12);
+		if (size < 0) {
+			throw new IOException(path + ": bad number of cities " + size);
+		}
+		if (typeCode < 0 || typeCode >= TSPInstance.DistanceType.values().length) {
+			throw new IOException(path + ": unknown distance type " + typeCode);
+		}
+		TSPInstance.DistanceType type = TSPInstance.DistanceType.values()[typeCode];
+
+		long values = type == TSPInstance.DistanceType.EXPLICIT ? (long) size * (size - 1) / 2 : (long) size * 2;
+		if (values > Integer.MAX_VALUE) {
+			throw new IOException(path + ": too many cities for an " + type + " instance: " + size);
+		}
+		if (channel.size() != HEADER_BYTES + (values * 8)) {
+			throw new IOException(path + ": expected " + (HEADER_BYTES + (values * 8)) + " bytes for " + size
+					+ " cities, found " + channel.size());
+		}
+
+		String name = TSPFile.baseName(path);
+		if (type == TSPInstance.DistanceType.EXPLICIT) {
+			return new TSPInstance(name, size, TSPFile.readDoubles(channel, HEADER_BYTES, (int) values));
+		}
+		double xs[] = TSPFile.readDoubles(channel, HEADER_BYTES, size);
+		double ys[] = TSPFile.readDoubles(channel, HEADER_BYTES + ((long) size * 8), size);
+		return new TSPInstance(name, type, xs, ys);
+	}
+
+	/**
+	 * Copy an array of doubles out of the file, mapping it a piece at a time
+	 */
+	private static double[] readDoubles(FileChannel channel, long position, int count) throws IOException {
+		double values[] = new double[count];
+		int index = 0;
+		while (index < count) {
+			int chunk = Math.min(count - index, MAX_MAP_BYTES / 8);
+			DoubleBuffer buffer = channel
+					.map(FileChannel.MapMode.READ_ONLY, position + ((long) index * 8), chunk * 8L)
+					.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			buffer.get(values, index, chunk);
+			index += chunk;
+		}
+		return values;
+	}
+
+	/**
+	 * Write an instance to a binary file, replacing the file if it exists
+	 * 
+	 * @param instance
+	 *            The instance to write
+	 * @param path
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void writeBinary(TSPInstance instance, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(instance.size());
+			header.putInt(instance.getDistanceType().ordinal());
+			header.putLong(0);
+			header.putLong(0);
+			header.flip();
+			TSPFile.writeFully(channel, header);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (instance.hasCoordinates()) {
+				TSPFile.writeDoubles(channel, buffer, instance.getXs());
+				TSPFile.writeDoubles(channel, buffer, instance.getYs());
+			} else {
+				TSPFile.writeDoubles(channel, buffer, instance.getWeights());
+			}
+		}
+	}
+
+	private static void writeDoubles(FileChannel channel, ByteBuffer buffer, double values[]) throws IOException {
+		int index = 0;
+		while (index < values.length) {
+			int count = Math.min(values.length - index, buffer.capacity() / 8);
+			buffer.clear();
+			buffer.asDoubleBuffer().put(values, index, count);
+			buffer.limit(count * 8);
+			TSPFile.writeFully(channel, buffer);
+			index += count;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Write a tour in TSPLIB's tour format, replacing the file if it exists.
+	 * Cities are numbered from 1, as in TSPLIB files.
+	 * 
+	 * @param individual
+	 *            The tour
+	 * @param name
+	 *            The tour's name
+	 * @param length
+	 *            The tour's length, which is recorded in the comment
+	 * @param path
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void writeTour(Individual individual, String name, double length, Path path)
+			throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+			writer.write("NAME : " + name);
+			writer.newLine();
+			writer.write("COMMENT : Length " + length);
+			writer.newLine();
+			writer.write("TYPE : TOUR");
+			writer.newLine();
+			writer.write("DIMENSION : " + individual.getChromosomeLength());
+			writer.newLine();
+			writer.write("TOUR_SECTION");
+			writer.newLine();
+			for (int gene = 0; gene < individual.getChromosomeLength(); gene++) {
+				writer.write(Integer.toString(individual.getGene(gene) + 1));
+				writer.newLine();
+			}
+			writer.write("-1");
+			writer.newLine();
+			writer.write("EOF");
+			writer.newLine();
+		}
+	}
+
+	/**
+	 * The file's name without its extension
+	 */
+	private static String baseName(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Parses a TSPLIB file straight out of a byte buffer
+	 */
+	private static final class TsplibParser {
+
+		/**
+		 * Powers of ten that a double holds exactly
+		 */
+		private static final double POWERS_OF_TEN[] = new double[23];
+		static {
+			POWERS_OF_TEN[0] = 1;
+			for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+				POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+			}
+		}
+
+		private final ByteBuffer buffer;
+		private final int limit;
+		private final Path path;
+		private int position = 0;
+
+		private String name;
+		private int size = -1;
+		private TSPInstance.DistanceType type;
+		private String weightFormat = "FULL_MATRIX";
+		private double xs[];
+		private double ys[];
+		private double weights[];
+
+		TsplibParser(ByteBuffer buffer, Path path) {
+			this.buffer = buffer;
+			this.limit = buffer.limit();
+			this.path = path;
+			this.name = TSPFile.baseName(path);
+		}
+
+		TSPInstance parse() throws IOException {
+			while (this.skipWhitespace()) {
+				String keyword = this.readKeyword();
+				if (keyword.equals("EOF")) {
+					break;
+				} else if (keyword.equals("NODE_COORD_SECTION")) {
+					this.readCoordinates();
+				} else if (keyword.equals("EDGE_WEIGHT_SECTION")) {
+					this.readWeights();
+				} else if (keyword.endsWith("_SECTION")) {
+					this.skipSection(keyword);
+				} else {
+					this.readSpecification(keyword, this.readValue());
+				}
+			}
+
+			if (this.type == null) {
+				throw this.error("no EDGE_WEIGHT_TYPE given");
+			}
+			if (this.type == TSPInstance.DistanceType.EXPLICIT) {
+				if (this.weights == null) {
+					throw this.error("no EDGE_WEIGHT_SECTION found");
+				}
+				return new TSPInstance(this.name, this.size, this.weights);
+			}
+			if (this.xs == null) {
+				throw this.error("no NODE_COORD_SECTION found");
+			}
+			return new TSPInstance(this.name, this.type, this.xs, this.ys);
+		}
+
+		private void readSpecification(String keyword, String value) throws IOException {
+			if (keyword.equals("NAME")) {
+				this.name = value;
+			} else if (keyword.equals("TYPE")) {
+				if (value.equals("TSP") == false) {
+					throw this.error("only symmetric TSP instances are supported, not " + value);
+				}
+			} else if (keyword.equals("DIMENSION")) {
+				try {
+					this.size = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw this.error("bad DIMENSION " + value);
+				}
+				if (this.size < 1) {
+					throw this.error("bad DIMENSION " + value);
+				}
+			} else if (keyword.equals("EDGE_WEIGHT_TYPE")) {
+				try {
+					this.type = TSPInstance.DistanceType.valueOf(value);
+				} catch (IllegalArgumentException e) {
+					throw this.error("unsupported EDGE_WEIGHT_TYPE " + value);
+				}
+			} else if (keyword.equals("EDGE_WEIGHT_FORMAT")) {
+				this.weightFormat = value;
+			} else if (keyword.equals("NODE_COORD_TYPE")) {
+				if (value.equals("TWOD_COORDS") == false) {
+					throw this.error("unsupported NODE_COORD_TYPE " + value);
+				}
+			}
+			// Anything else, such as COMMENT, doesn't affect the instance
+		}
+
+		private void readCoordinates() throws IOException {
+			this.requireSize("NODE_COORD_SECTION");
+			this.xs = new double[this.size];
+			this.ys = new double[this.size];
+			boolean seen[] = new boolean[this.size];
+			for (int i = 0; i < this.size; i++) {
+				double id = this.readNumber();
+				int city = (int) id - 1;
+				if (city < 0 || city >= this.size || city + 1 != id) {
+					throw this.error("bad node number " + id);
+				}
+				if (seen[city]) {
+					throw this.error("node " + id + " appears twice");
+				}
+				seen[city] = true;
+				this.xs[city] = this.readNumber();
+				this.ys[city] = this.readNumber();
+			}
+		}
+
+		/**
+		 * Read the matrix, keeping the lower triangle. The column-wise layouts
+		 * of a symmetric matrix are the same as the opposite row-wise ones.
+		 */
+		private void readWeights() throws IOException {
+			this.requireSize("EDGE_WEIGHT_SECTION");
+			long entries = (long) this.size * (this.size - 1) / 2;
+			if (entries > Integer.MAX_VALUE) {
+				throw this.error("too many cities for an explicit matrix: " + this.size);
+			}
+			this.weights = new double[(int) entries];
+
+			String format = this.weightFormat;
+			boolean full = format.equals("FULL_MATRIX");
+			boolean upper = format.equals("UPPER_ROW") || format.equals("LOWER_COL")
+					|| format.equals("UPPER_DIAG_ROW") || format.equals("LOWER_DIAG_COL");
+			boolean lower = format.equals("LOWER_ROW") || format.equals("UPPER_COL")
+					|| format.equals("LOWER_DIAG_ROW") || format.equals("UPPER_DIAG_COL");
+			boolean diagonal = format.contains("DIAG");
+			if (full == false && upper == false && lower == false) {
+				throw this.error("unsupported EDGE_WEIGHT_FORMAT " + format);
+			}
+
+			for (int row = 0; row < this.size; row++) {
+				int first = full ? 0 : upper ? (diagonal ? row : row + 1) : 0;
+				int last = full ? this.size - 1 : upper ? this.size - 1 : (diagonal ? row : row - 1);
+				for (int column = first; column <= last; column++) {
+					double weight = this.readNumber();
+					if (row > column) {
+						this.weights[(int) (((long) row * (row - 1) / 2) + column)] = weight;
+					} else if (row < column && full == false) {
+						this.weights[(int) (((long) column * (column - 1) / 2) + row)] = weight;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Skip a section we don't use. Fixed edges and tours end with -1;
+		 * display data has a line per city.
+		 */
+		private void skipSection(String keyword) throws IOException {
+			if (keyword.equals("DISPLAY_DATA_SECTION")) {
+				this.requireSize(keyword);
+				for (int i = 0; i < this.size * 3; i++) {
+					this.readNumber();
+				}
+				return;
+			}
+			while (this.readNumber() != -1) {
+				// Keep going until the terminator
+			}
+		}
+
+		private void requireSize(String section) throws IOException {
+			if (this.size < 0) {
+				throw this.error(section + " comes before DIMENSION");
+			}
+		}
+
+		/**
+		 * Skip spaces, tabs and line breaks
+		 * 
+		 * @return False if that reaches the end of the file
+		 */
+		private boolean skipWhitespace() {
+			while (this.position < this.limit && this.buffer.get(this.position) <= ' ') {
+				this.position++;
+			}
+			return this.position < this.limit;
+		}
+
+		/**
+		 * Read a keyword, which ends at a colon or whitespace
+		 */
+		private String readKeyword() {
+			int start = this.position;
+			while (this.position < this.limit) {
+				byte b = this.buffer.get(this.position);
+				if (b <= ' ' || b == ':') {
+					break;
+				}
+				this.position++;
+			}
+			return this.text(start, this.position);
+		}
+
+		/**
+		 * Read the value of a specification line: everything after the
+		 * colon, up to the end of the line, trimmed
+		 */
+		private String readValue() {
+			while (this.position < this.limit) {
+				byte b = this.buffer.get(this.position);
+				if (b != ' ' && b != '\t' && b != ':') {
+					break;
+				}
+				this.position++;
+			}
+			int start = this.position;
+			while (this.position < this.limit && this.buffer.get(this.position) != '\n') {
+				this.position++;
+			}
+			return this.text(start, this.position).trim();
+		}
+
+		/**
+		 * Read a number, such as 12, -3.5 or 1.2e+03
+		 * 
+		 * Numbers with up to 15 significant digits and a small exponent,
+		 * which is nearly every number in a TSPLIB file, are worked out
+		 * directly: the digits and the power of ten are both exact doubles,
+		 * so one multiplication or division rounds correctly, giving the same
+		 * result as Double.parseDouble. Anything else is handed to
+		 * Double.parseDouble.
+		 */
+		private double readNumber() throws IOException {
+			if (this.skipWhitespace() == false) {
+				throw this.error("unexpected end of file");
+			}
+			int start = this.position;
+			boolean negative = false;
+			byte b = this.buffer.get(this.position);
+			if (b == '-' || b == '+') {
+				negative = b == '-';
+				this.position++;
+			}
+
+			long digits = 0;
+			int digitCount = 0;
+			int scale = 0;
+			boolean anyDigits = false;
+			boolean fraction = false;
+			while (this.position < this.limit) {
+				b = this.buffer.get(this.position);
+				if (b >= '0' && b <= '9') {
+					anyDigits = true;
+					if (digitCount > 0 || b != '0') {
+						digitCount++;
+					}
+					if (digitCount <= 18) {
+						digits = (digits * 10) + (b - '0');
+						if (fraction) {
+							scale--;
+						}
+					} else if (fraction == false) {
+						scale++;
+					}
+				} else if (b == '.' && fraction == false) {
+					fraction = true;
+				} else {
+					break;
+				}
+				this.position++;
+			}
+			if (anyDigits == false) {
+				int end = start;
+				while (end < this.limit && end < start + 20 && this.buffer.get(end) > ' ') {
+					end++;
+				}
+				throw this.error("expected a number, found '" + this.text(start, end) + "'");
+			}
+
+			if (this.position < this.limit && (b == 'e' || b == 'E')) {
+				this.position++;
+				boolean negativeExponent = false;
+				if (this.position < this.limit) {
+					b = this.buffer.get(this.position);
+					if (b == '-' || b == '+') {
+						negativeExponent = b == '-';
+						this.position++;
+					}
+				}
+				int exponent = 0;
+				boolean exponentDigits = false;
+				while (this.position < this.limit) {
+					b = this.buffer.get(this.position);
+					if (b < '0' || b > '9') {
+						break;
+					}
+					exponentDigits = true;
+					exponent = Math.min((exponent * 10) + (b - '0'), 100000);
+					this.position++;
+				}
+				if (exponentDigits == false) {
+					throw this.error("bad number '" + this.text(start, this.position) + "'");
+				}
+				scale += negativeExponent ? -exponent : exponent;
+			}
+
+			double value;
+			if (digitCount <= 15 && scale >= -22 && scale <= 22) {
+				value = scale < 0 ? digits / POWERS_OF_TEN[-scale] : digits * POWERS_OF_TEN[scale];
+			} else {
+				try {
+					value = Math.abs(Double.parseDouble(this.text(start, this.position)));
+				} catch (NumberFormatException e) {
+					throw this.error("bad number '" + this.text(start, this.position) + "'");
+				}
+			}
+			return negative ? -value : value;
+		}
+
+		private String text(int start, int end) {
+			byte bytes[] = new byte[end - start];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = this.buffer.get(start + i);
+			}
+			return new String(bytes, StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Make an exception that says where in the file the problem is
+		 */
+		private IOException error(String message) {
+			int line = 1;
+			for (int i = 0; i < Math.min(this.position, this.limit); i++) {
+				if (this.buffer.get(i) == '\n') {
+					line++;
+				}
+			}
+			return new IOException(this.path + ":" + line + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package chapter4;
+
+/**
+ * A TSP instance loaded from a file, such as one of the TSPLIB benchmarks.
+ * 
+ * The cities are kept as plain coordinate arrays rather than as City
+ * objects, so a million-city instance takes 16MB instead of tens of MB of
+ * object headers and pointers. The instance is itself a DistanceProvider,
+ * working each distance out from the coordinates when it's asked for, using
+ * the instance's own distance function. TSPLIB's distance functions round to
+ * whole numbers, so tour lengths agree with the published optimal tours.
+ * 
+ * Instances given as an explicit matrix of distances, rather than as
+ * coordinates, keep the lower triangle of the matrix instead. They have no
+ * coordinates, so they can't be given a CityIndex.
+ * 
+ * See TSPFile for reading and writing instances.
+ */
+public class TSPInstance implements DistanceProvider {
+
+	/**
+	 * How the distance between two cities is worked out, named as in TSPLIB's
+	 * EDGE_WEIGHT_TYPE
+	 */
+	public enum DistanceType {
+		/**
+		 * Euclidean distance, rounded to the nearest whole number
+		 */
+		EUC_2D,
+
+		/**
+		 * Euclidean distance, rounded up
+		 */
+		CEIL_2D,
+
+		/**
+		 * Distance over the surface of the earth, in whole kilometres, with
+		 * the coordinates given as latitude and longitude in degrees and
+		 * minutes: 12.34 means 12 degrees and 34 minutes
+		 */
+		GEO,
+
+		/**
+		 * Distances given in a matrix rather than worked out from
+		 * coordinates
+		 */
+		EXPLICIT
+	}
+
+	/**
+	 * TSPLIB's constants for GEO distances
+	 */
+	private static final double GEO_PI = 3.141592;
+	private static final double EARTH_RADIUS = 6378.388;
+
+	private final String name;
+	private final DistanceType type;
+	private final int size;
+	private final double xs[];
+	private final double ys[];
+
+	/**
+	 * For GEO instances, the latitude and longitude of each city in radians
+	 */
+	private final double latitudes[];
+	private final double longitudes[];
+
+	/**
+	 * For EXPLICIT instances, the distance between each pair of cities with
+	 * from > to, at index (from * (from - 1) / 2) + to, as in a triangular
+	 * DistanceMatrix
+	 */
+	private final double weights[];
+
+	/**
+	 * Create an instance from coordinates
+	 * 
+	 * @param name
+	 *            The instance's name
+	 * @param type
+	 *            How distances are worked out, which can't be EXPLICIT
+	 * @param xs
+	 *            The cities' x positions, which the instance takes ownership
+	 *            of
+	 * @param ys
+	 *            The cities' y positions, which the instance takes ownership
+	 *            of
+	 */
+	public TSPInstance(String name, DistanceType type, double xs[], double ys[]) {
+		if (type == DistanceType.EXPLICIT) {
+			throw new IllegalArgumentException("An explicit instance needs a distance matrix, not coordinates");
+		}
+		if (xs.length != ys.length) {
+			throw new IllegalArgumentException(
+					"Got " + xs.length + " x positions but " + ys.length + " y positions");
+		}
+		this.name = name;
+		this.type = type;
+		this.size = xs.length;
+		this.xs = xs;
+		this.ys = ys;
+		this.weights = null;
+
+		if (type == DistanceType.GEO) {
+			this.latitudes = new double[this.size];
+			this.longitudes = new double[this.size];
+			for (int city = 0; city < this.size; city++) {
+				this.latitudes[city] = TSPInstance.geoRadians(xs[city]);
+				this.longitudes[city] = TSPInstance.geoRadians(ys[city]);
+			}
+		} else {
+			this.latitudes = null;
+			this.longitudes = null;
+		}
+	}
+
+	/**
+	 * Create an instance from a distance matrix
+	 * 
+	 * @param name
+	 *            The instance's name
+	 * @param size
+	 *            The number of cities
+	 * @param weights
+	 *            The lower triangle of the matrix, without the diagonal: the
+	 *            distance between from and to, where from > to, is at index
+	 *            (from * (from - 1) / 2) + to. The instance takes ownership of
+	 *            the array.
+	 */
+	public TSPInstance(String name, int size, double weights[]) {
+		if (weights.length != (long) size * (size - 1) / 2) {
+			throw new IllegalArgumentException("A matrix for " + size + " cities needs "
+					+ ((long) size * (size - 1) / 2) + " distances, not " + weights.length);
+		}
+		this.name = name;
+		this.type = DistanceType.EXPLICIT;
+		this.size = size;
+		this.xs = null;
+		this.ys = null;
+		this.latitudes = null;
+		this.longitudes = null;
+		this.weights = weights;
+	}
+
+	/**
+	 * Convert a TSPLIB GEO coordinate, in degrees and minutes, to radians
+	 */
+	private static double geoRadians(double coordinate) {
+		double degrees = (int) coordinate;
+		double minutes = coordinate - degrees;
+		return GEO_PI * (degrees + (5.0 * minutes / 3.0)) / 180.0;
+	}
+
+	@Override
+	public double getDistance(int from, int to) {
+		if (from == to) {
+			return 0;
+		}
+		switch (this.type) {
+		case EUC_2D:
+			return (int) (this.euclidean(from, to) + 0.5);
+		case CEIL_2D:
+			return Math.ceil(this.euclidean(from, to));
+		case GEO:
+			double q1 = Math.cos(this.longitudes[from] - this.longitudes[to]);
+			double q2 = Math.cos(this.latitudes[from] - this.latitudes[to]);
+			double q3 = Math.cos(this.latitudes[from] + this.latitudes[to]);
+			return (int) ((EARTH_RADIUS * Math.acos(0.5 * (((1.0 + q1) * q2) - ((1.0 - q1) * q3)))) + 1.0);
+		default:
+			if (from < to) {
+				int swap = from;
+				from = to;
+				to = swap;
+			}
+			return this.weights[(int) (((long) from * (from - 1) / 2) + to)];
+		}
+	}
+
+	private double euclidean(int from, int to) {
+		double deltaX = this.xs[to] - this.xs[from];
+		double deltaY = this.ys[to] - this.ys[from];
+		return Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The instance's name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return How distances are worked out
+	 */
+	public DistanceType getDistanceType() {
+		return this.type;
+	}
+
+	/**
+	 * @return True if the cities have coordinates, which is every type but
+	 *         EXPLICIT
+	 */
+	public boolean hasCoordinates() {
+		return this.xs != null;
+	}
+
+	/**
+	 * Get the cities' x positions. The array is the instance's own, so don't
+	 * change it.
+	 * 
+	 * @return The x positions, or null for an EXPLICIT instance
+	 */
+	public double[] getXs() {
+		return this.xs;
+	}
+
+	/**
+	 * Get the cities' y positions. The array is the instance's own, so don't
+	 * change it.
+	 * 
+	 * @return The y positions, or null for an EXPLICIT instance
+	 */
+	public double[] getYs() {
+		return this.ys;
+	}
+
+	/**
+	 * Get the lower triangle of an EXPLICIT instance's distance matrix. The
+	 * array is the instance's own, so don't change it.
+	 * 
+	 * @return The distances, or null for an instance with coordinates
+	 */
+	double[] getWeights() {
+		return this.weights;
+	}
+
+	/**
+	 * Build each city's nearest-neighbour lists, with a CityIndex if the
+	 * cities have coordinates, and by checking every pair if they don't
+	 * 
+	 * For GEO instances, the index treats latitude and longitude as flat
+	 * coordinates, which is close enough to pick candidate neighbours.
+	 * 
+	 * @param count
+	 *            The number of neighbours per city
+	 * @return neighborLists
+	 */
+	public NeighborLists getNeighborLists(int count) {
+		if (this.hasCoordinates()) {
+			return new CityIndex(this.xs, this.ys).getNeighborLists(count);
+		}
+		return new NeighborLists(this, count);
+	}
+}
@@ -0,0 +1,301 @@
+package chapter4;
+
+/**
+ * Mutation moves for TSP tours that work out exactly how much they change the
+ * tour's length, from just the edges they touch.
+ * 
+ * A move only breaks a handful of edges of the tour and joins its cities up
+ * with a handful of new ones, so the change in length is the length of the new
+ * edges minus the length of the old ones: at most four edges for a swap, two
+ * for an inversion and three for an insertion, however many cities there are.
+ * If the individual knows its tour length, it can then be updated in O(1)
+ * instead of summing all n edges again.
+ * 
+ * Each move has a delta method, which must be called before the move is made,
+ * and a method that makes the move. The moves change the genes with setGene,
+ * which forgets the tour length, so the caller records the new length
+ * afterwards; mutate does both.
+ * 
+ * The deltas assume the distance from a to b is the same as from b to a, as
+ * it is for a DistanceMatrix, since an inversion walks the edges inside the
+ * inverted section the other way round.
+ */
+public class TourMutation {
+
+	/**
+	 * The moves available
+	 */
+	public enum Type {
+		/**
+		 * Exchange the cities at two positions
+		 */
+		SWAP,
+
+		/**
+		 * Reverse the section of the tour between two positions, which is the
+		 * 2-opt move: it replaces the two edges at the ends of the section
+		 */
+		INVERSION,
+
+		/**
+		 * Take the city at one position out of the tour and put it back in at
+		 * another, shifting the cities in between along by one
+		 */
+		INSERTION
+	}
+
+	/**
+	 * Make a move, keeping the individual's tour length up to date if it's
+	 * known
+	 * 
+	 * @param type
+	 *            The move to make
+	 * @param individual
+	 *            The individual to mutate
+	 * @param from
+	 *            The first position
+	 * @param to
+	 *            The second position
+	 * @param distances
+	 *            The distances between cities, or null to just make the move
+	 */
+	public static void mutate(Type type, Individual individual, int from, int to, DistanceProvider distances) {
+		double length = individual.getTourLength();
+		boolean tracked = distances != null && Double.isNaN(length) == false;
+		if (tracked) {
+			length += TourMutation.delta(type, individual, from, to, distances);
+		}
+
+		if (type == Type.INVERSION) {
+			TourMutation.invert(individual, from, to);
+		} else if (type == Type.INSERTION) {
+			TourMutation.insert(individual, from, to);
+		} else {
+			TourMutation.swap(individual, from, to);
+		}
+
+		if (tracked) {
+			individual.setTourLength(length);
+		}
+	}
+
+	/**
+	 * Work out how much a move would change the tour length
+	 * 
+	 * @param type
+	 *            The move
+	 * @param individual
+	 *            The individual, before the move
+	 * @param from
+	 *            The first position
+	 * @param to
+	 *            The second position
+	 * @param distances
+	 *            The distances between cities
+	 * @return The new tour length minus the old one
+	 */
+	public static double delta(Type type, Individual individual, int from, int to, DistanceProvider distances) {
+		if (type == Type.INVERSION) {
+			return TourMutation.inversionDelta(individual, from, to, distances);
+		} else if (type == Type.INSERTION) {
+			return TourMutation.insertionDelta(individual, from, to, distances);
+		}
+		return TourMutation.swapDelta(individual, from, to, distances);
+	}
+
+	/**
+	 * Exchange the cities at two positions
+	 * 
+	 * @param individual
+	 * @param from
+	 * @param to
+	 */
+	public static void swap(Individual individual, int from, int to) {
+		int gene1 = individual.getGene(to);
+		int gene2 = individual.getGene(from);
+		individual.setGene(from, gene1);
+		individual.setGene(to, gene2);
+	}
+
+	/**
+	 * Work out how much swapping the cities at two positions would change the
+	 * tour length
+	 * 
+	 * The edges that change are the ones either side of each position. When
+	 * the positions are next to each other, they share an edge, which is only
+	 * counted once; that edge just turns round.
+	 * 
+	 * @param individual
+	 * @param from
+	 * @param to
+	 * @param distances
+	 * @return The new tour length minus the old one
+	 */
+	public static double swapDelta(Individual individual, int from, int to, DistanceProvider distances) {
+		int length = individual.getChromosomeLength();
+		if (from == to || length < 4) {
+			// Any tour of three or fewer cities has the same length
+			return 0;
+		}
+
+		// The edges leaving these positions are the ones that change. When the
+		// positions are next to each other, one of the edges leaving the
+		// earlier position is the edge leaving the later one, so it's skipped.
+		int beforeFrom = TourMutation.previous(from, length);
+		int beforeTo = TourMutation.previous(to, length);
+		double delta = TourMutation.swapEdgeDelta(individual, beforeFrom, from, to, distances);
+		delta += TourMutation.swapEdgeDelta(individual, from, from, to, distances);
+		if (beforeTo != beforeFrom && beforeTo != from) {
+			delta += TourMutation.swapEdgeDelta(individual, beforeTo, from, to, distances);
+		}
+		if (to != beforeFrom) {
+			delta += TourMutation.swapEdgeDelta(individual, to, from, to, distances);
+		}
+		return delta;
+	}
+
+	/**
+	 * Work out how much swapping two positions would change the edge leaving
+	 * a position
+	 */
+	private static double swapEdgeDelta(Individual individual, int edge, int from, int to,
+			DistanceProvider distances) {
+		int next = TourMutation.next(edge, individual.getChromosomeLength());
+		return distances.getDistance(TourMutation.swappedGene(individual, edge, from, to),
+				TourMutation.swappedGene(individual, next, from, to))
+				- distances.getDistance(individual.getGene(edge), individual.getGene(next));
+	}
+
+	/**
+	 * The gene at a position as it would be after swapping two positions
+	 */
+	private static int swappedGene(Individual individual, int position, int from, int to) {
+		if (position == from) {
+			return individual.getGene(to);
+		} else if (position == to) {
+			return individual.getGene(from);
+		}
+		return individual.getGene(position);
+	}
+
+	/**
+	 * Reverse the section of the tour between two positions, inclusive. The
+	 * positions can be given in either order.
+	 * 
+	 * @param individual
+	 * @param from
+	 * @param to
+	 */
+	public static void invert(Individual individual, int from, int to) {
+		int start = Math.min(from, to);
+		int end = Math.max(from, to);
+		while (start < end) {
+			TourMutation.swap(individual, start++, end--);
+		}
+	}
+
+	/**
+	 * Work out how much reversing the section between two positions would
+	 * change the tour length
+	 * 
+	 * Only the edge into the section and the edge out of it change: the edges
+	 * inside it are just walked the other way.
+	 * 
+	 * @param individual
+	 * @param from
+	 * @param to
+	 * @param distances
+	 * @return The new tour length minus the old one
+	 */
+	public static double inversionDelta(Individual individual, int from, int to, DistanceProvider distances) {
+		int length = individual.getChromosomeLength();
+		int start = Math.min(from, to);
+		int end = Math.max(from, to);
+		if (start == end || (start == 0 && end == length - 1)) {
+			// Reversing the whole tour gives the same tour backwards
+			return 0;
+		}
+
+		int before = individual.getGene(TourMutation.previous(start, length));
+		int first = individual.getGene(start);
+		int last = individual.getGene(end);
+		int after = individual.getGene(TourMutation.next(end, length));
+		return distances.getDistance(before, last) + distances.getDistance(first, after)
+				- distances.getDistance(before, first) - distances.getDistance(last, after);
+	}
+
+	/**
+	 * Move the city at one position to another, shifting the cities in
+	 * between along by one to make room
+	 * 
+	 * @param individual
+	 * @param from
+	 *            The position of the city to move
+	 * @param to
+	 *            The position the city ends up at
+	 */
+	public static void insert(Individual individual, int from, int to) {
+		int gene = individual.getGene(from);
+		if (from < to) {
+			for (int position = from; position < to; position++) {
+				individual.setGene(position, individual.getGene(position + 1));
+			}
+		} else {
+			for (int position = from; position > to; position--) {
+				individual.setGene(position, individual.getGene(position - 1));
+			}
+		}
+		individual.setGene(to, gene);
+	}
+
+	/**
+	 * Work out how much moving the city at one position to another would
+	 * change the tour length
+	 * 
+	 * Taking the city out joins up its two neighbours, and putting it back in
+	 * splits the edge between its new neighbours.
+	 * 
+	 * @param individual
+	 * @param from
+	 *            The position of the city to move
+	 * @param to
+	 *            The position the city ends up at
+	 * @param distances
+	 * @return The new tour length minus the old one
+	 */
+	public static double insertionDelta(Individual individual, int from, int to, DistanceProvider distances) {
+		int length = individual.getChromosomeLength();
+		if (from == to || length < 4 || (from == 0 && to == length - 1) || (from == length - 1 && to == 0)) {
+			// Moving the first city to the end, or the last to the start,
+			// only rotates the tour
+			return 0;
+		}
+
+		int city = individual.getGene(from);
+		int before = individual.getGene(TourMutation.previous(from, length));
+		int after = individual.getGene(TourMutation.next(from, length));
+		double delta = distances.getDistance(before, after) - distances.getDistance(before, city)
+				- distances.getDistance(city, after);
+
+		// The city's new neighbours, once the cities in between have shifted
+		int left;
+		int right;
+		if (from < to) {
+			left = individual.getGene(to);
+			right = individual.getGene(TourMutation.next(to, length));
+		} else {
+			left = individual.getGene(TourMutation.previous(to, length));
+			right = individual.getGene(to);
+		}
+		return delta + distances.getDistance(left, city) + distances.getDistance(city, right)
+				- distances.getDistance(left, right);
+	}
+
+	private static int previous(int position, int length) {
+		return position == 0 ? length - 1 : position - 1;
+	}
+
+	private static int next(int position, int length) {
+		return position == length - 1 ? 0 : position + 1;
+	}
+}
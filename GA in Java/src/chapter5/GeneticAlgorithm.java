@@ -9,14 +9,115 @@ public class GeneticAlgorithm {
 	private int elitismCount;
 	protected int tournamentSize;
 
+	/**
+	 * Source of all random numbers used by the algorithm
+	 */
+	private RandomSource random;
+
+	/**
+	 * Scratch buffer for random numbers drawn in blocks
+	 */
+	private double randomBlock[] = new double[0];
+
+	/**
+	 * Whether mutation should draw the distance to the next mutated gene from
+	 * a geometric distribution, rather than testing every gene in turn. Both
+	 * modes mutate genes with the same probabilities, but at low mutation
+	 * rates the geometric mode needs far fewer random numbers.
+	 */
+	private boolean geometricMutation = false;
+
+	/**
+	 * How many individuals the last call to evalPopulation evaluated, and how
+	 * many it skipped because their fitness was still current, along with the
+	 * running totals across all calls
+	 */
+	private int lastEvaluatedCount = 0;
+	private int lastSkippedCount = 0;
+	private long totalEvaluatedCount = 0;
+	private long totalSkippedCount = 0;
+
+	/**
+	 * Cache of fitness values for chromosomes that have already been
+	 * evaluated, or null to evaluate every stale individual from scratch
+	 */
+	private FitnessCache fitnessCache = null;
+
+	/**
+	 * Create a genetic algorithm that draws its random numbers from the given
+	 * source, so that runs can be reproduced from the source's seed.
+	 */
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
-			int tournamentSize) {
+			int tournamentSize, RandomSource random) {
 
 		this.populationSize = populationSize;
 		this.mutationRate = mutationRate;
 		this.crossoverRate = crossoverRate;
 		this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+	}
+
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Switch between per-gene and geometric skip-sampling mutation
+	 * 
+	 * @param geometricMutation
+	 *            True to jump directly between mutated genes
+	 */
+	public void setGeometricMutation(boolean geometricMutation) {
+		this.geometricMutation = geometricMutation;
+	}
+
+	/**
+	 * Look up stale individuals in a fitness cache before evaluating them. The
+	 * cache is only valid for a single timetable, so don't share it between runs
+	 * against different ones.
+	 * 
+	 * @param fitnessCache
+	 *            The cache to use, or null to stop caching
+	 */
+	public void setFitnessCache(FitnessCache fitnessCache) {
+		this.fitnessCache = fitnessCache;
+	}
+
+	/**
+	 * @return The fitness cache, or null if there isn't one
+	 */
+	public FitnessCache getFitnessCache() {
+		return this.fitnessCache;
+	}
+
+	/**
+	 * @return The number of individuals evaluated by the last evalPopulation
+	 */
+	public int getLastEvaluatedCount() {
+		return this.lastEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped by the last evalPopulation
+	 */
+	public int getLastSkippedCount() {
+		return this.lastSkippedCount;
+	}
+
+	/**
+	 * @return The number of individuals evaluated across all generations
+	 */
+	public long getTotalEvaluatedCount() {
+		return this.totalEvaluatedCount;
+	}
+
+	/**
+	 * @return The number of evaluations skipped across all generations
+	 */
+	public long getTotalSkippedCount() {
+		return this.totalSkippedCount;
 	}
 
 	/**
@@ -28,7 +129,7 @@ public class GeneticAlgorithm {
 	 */
 	public Population initPopulation(Timetable timetable) {
 		// Initialize population
-		Population population = new Population(this.populationSize, timetable);
+		Population population = new Population(this.populationSize, timetable, this.random);
 		return population;
 	}
 
@@ -77,21 +178,65 @@ public class GeneticAlgorithm {
 		return fitness;
 	}
 
+	/**
+	 * Calculate an individual's fitness, unless the fitness cache already
+	 * knows the fitness of its chromosome
+	 * 
+	 * @param individual
+	 *            the individual to evaluate
+	 * @param timetable
+	 *            the timetable to evaluate the individual against
+	 * @return double The fitness value for individual
+	 */
+	private double cachedFitness(Individual individual, Timetable timetable) {
+		if (this.fitnessCache == null) {
+			return this.calcFitness(individual, timetable);
+		}
+
+		double fitness = this.fitnessCache.get(individual);
+		if (Double.isNaN(fitness)) {
+			fitness = this.calcFitness(individual, timetable);
+			this.fitnessCache.put(individual, fitness);
+		} else {
+			individual.setFitness(fitness);
+		}
+		return fitness;
+	}
+
 	/**
 	 * Evaluate population
 	 * 
+	 * Individuals whose chromosome hasn't changed since their fitness was
+	 * calculated (elites, and parents that were carried over without crossover
+	 * or mutation) keep that fitness; only stale individuals are evaluated.
+	 * If there's a fitness cache, stale individuals are looked up there first.
+	 * 
 	 * @param population
 	 * @param timetable
 	 */
 	public void evalPopulation(Population population, Timetable timetable) {
 		double populationFitness = 0;
+		int evaluated = 0;
+		int skipped = 0;
 
 		// Loop over population evaluating individuals and summing population
 		// fitness
 		for (Individual individual : population.getIndividuals()) {
-			populationFitness += this.calcFitness(individual, timetable);
+			// Only individuals whose chromosome has changed need evaluating
+			if (individual.isFitnessStale()) {
+				populationFitness += this.cachedFitness(individual, timetable);
+				evaluated++;
+			} else {
+				populationFitness += individual.getFitness();
+				skipped++;
+			}
 		}
 
+		this.lastEvaluatedCount = evaluated;
+		this.lastSkippedCount = skipped;
+		this.totalEvaluatedCount += evaluated;
+		this.totalSkippedCount += skipped;
+
 		population.setPopulationFitness(populationFitness);
 	}
 
@@ -101,25 +246,70 @@ public class GeneticAlgorithm {
 	 * Tournament selection works by choosing N random individuals, and then
 	 * choosing the best of those.
 	 * 
+	 * Rather than shuffling the whole population and copying the first N
+	 * individuals into a separate tournament population, we draw N random
+	 * indices (with replacement) and remember the fittest contestant. This
+	 * costs O(N) per parent, allocates nothing, and leaves the population in
+	 * the order getFittest sorted it into.
+	 * 
 	 * @param population
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
+		Individual winner = null;
 
-		// Add random individuals to the tournament
-		population.shuffle();
+		// Draw random contestants and keep the fittest one seen so far
 		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+			int contestantIndex = this.random.nextInt(population.size());
+			Individual contestant = population.getIndividual(contestantIndex);
+			if (winner == null || contestant.getFitness() > winner.getFitness()) {
+				winner = contestant;
+			}
 		}
 
 		// Return the best
-		return tournament.getFittest(0);
+		return winner;
 	}
 
 
+	/**
+	 * Draw a block of random doubles into a reusable scratch buffer, so that
+	 * per-gene loops don't have to fetch their random numbers one at a time
+	 * 
+	 * @param count
+	 *            The number of random doubles needed
+	 * @return The scratch buffer, with the first count entries filled
+	 */
+	private double[] nextRandomBlock(int count) {
+		if (this.randomBlock.length < count) {
+			this.randomBlock = new double[count];
+		}
+		this.random.nextDoubles(this.randomBlock, count);
+		return this.randomBlock;
+	}
+
+	/**
+	 * Draw the number of genes to leave alone before the next mutation
+	 * 
+	 * Each gene mutates independently with probability mutationRate, so the
+	 * gap between one mutated gene and the next follows a geometric
+	 * distribution. Drawing the gap directly lets us jump straight to the next
+	 * gene that needs mutating instead of rolling the dice for every gene in
+	 * between, while mutating exactly the same distribution of genes.
+	 * 
+	 * @return The number of genes to skip
+	 */
+	private long nextMutationGap() {
+		if (this.mutationRate >= 1) {
+			return 0;
+		}
+		if (this.mutationRate <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		double gap = Math.floor(Math.log(1 - this.random.nextDouble()) / Math.log1p(-this.mutationRate));
+		return (long) Math.min(gap, Integer.MAX_VALUE);
+	}
+
 	/**
      * Apply mutation to population
      * 
@@ -135,17 +325,35 @@ public class GeneticAlgorithm {
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Create random individual to swap genes with
-			Individual randomIndividual = new Individual(timetable);
-
-			// Loop over individual's genes
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+			if (this.geometricMutation) {
 				// Skip mutation if this is an elite individual
 				if (populationIndex > this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
+					// Jump straight from one mutated gene to the next, only
+					// creating the random individual if we actually need it
+					Individual randomIndividual = null;
+					for (long geneIndex = this.nextMutationGap(); geneIndex < individual
+							.getChromosomeLength(); geneIndex += 1 + this.nextMutationGap()) {
+						if (randomIndividual == null) {
+							randomIndividual = new Individual(timetable, this.random);
+						}
 						// Swap for new gene
-						individual.setGene(geneIndex, randomIndividual.getGene(geneIndex));
+						individual.setGene((int) geneIndex, randomIndividual.getGene((int) geneIndex));
+					}
+				}
+			} else {
+				// Create random individual to swap genes with
+				Individual randomIndividual = new Individual(timetable, this.random);
+
+				// Loop over individual's genes
+				double rolls[] = this.nextRandomBlock(individual.getChromosomeLength());
+				for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+					// Skip mutation if this is an elite individual
+					if (populationIndex > this.elitismCount) {
+						// Does this gene need mutation?
+						if (this.mutationRate > rolls[geneIndex]) {
+							// Swap for new gene
+							individual.setGene(geneIndex, randomIndividual.getGene(geneIndex));
+						}
 					}
 				}
 			}
@@ -173,7 +381,7 @@ public class GeneticAlgorithm {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
 				// Initialize offspring
 				Individual offspring = new Individual(parent1.getChromosomeLength());
 				
@@ -181,9 +389,10 @@ public class GeneticAlgorithm {
 				Individual parent2 = selectParent(population);
 
 				// Loop over genome
+				double rolls[] = this.nextRandomBlock(parent1.getChromosomeLength());
 				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
 					// Use half of parent1's genes and half of parent2's genes
-					if (0.5 > Math.random()) {
+					if (0.5 > rolls[geneIndex]) {
 						offspring.setGene(geneIndex, parent1.getGene(geneIndex));
 					} else {
 						offspring.setGene(geneIndex, parent2.getGene(geneIndex));
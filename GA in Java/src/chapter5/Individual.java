@@ -8,6 +8,13 @@ public class Individual {
 	private int[] chromosome;
 	private double fitness = -1;
 
+	/**
+	 * Whether the fitness value is out of date, ie, the chromosome has changed
+	 * since the fitness was last stored. Evaluation skips individuals whose
+	 * fitness is still current.
+	 */
+	private boolean fitnessStale = true;
+
 	/**
 	 * Initializes random individual based on a timetable
 	 * 
@@ -26,8 +33,10 @@ public class Individual {
 	 * 
 	 * @param timetable
 	 *            The timetable information
+	 * @param random
+	 *            The source of random genes
 	 */
-	public Individual(Timetable timetable) {
+	public Individual(Timetable timetable, RandomSource random) {
 		int numClasses = timetable.getNumClasses();
 
 		// 1 gene for room, 1 for time, 1 for professor
@@ -40,18 +49,18 @@ public class Individual {
 			// Loop through modules
 			for (int moduleId : group.getModuleIds()) {
 				// Add random time
-				int timeslotId = timetable.getRandomTimeslot().getTimeslotId();
+				int timeslotId = timetable.getRandomTimeslot(random).getTimeslotId();
 				newChromosome[chromosomeIndex] = timeslotId;
 				chromosomeIndex++;
 
 				// Add random room
-				int roomId = timetable.getRandomRoom().getRoomId();
+				int roomId = timetable.getRandomRoom(random).getRoomId();
 				newChromosome[chromosomeIndex] = roomId;
 				chromosomeIndex++;
 
 				// Add random professor
 				Module module = timetable.getModule(moduleId);
-				newChromosome[chromosomeIndex] = module.getRandomProfessorId();
+				newChromosome[chromosomeIndex] = module.getRandomProfessorId(random);
 				chromosomeIndex++;
 			}
 		}
@@ -59,6 +68,17 @@ public class Individual {
 		this.chromosome = newChromosome;
 	}
 
+	/**
+	 * Initializes random individual based on a timetable, using the default
+	 * random source
+	 * 
+	 * @param timetable
+	 *            The timetable information
+	 */
+	public Individual(Timetable timetable) {
+		this(timetable, RandomSource.getDefault());
+	}
+
 	/**
 	 * Initializes random individual
 	 * 
@@ -121,7 +141,8 @@ public class Individual {
 	}
 
 	/**
-	 * Gets individual's chromosome
+	 * Gets individual's chromosome. This is the individual's own array, so call
+	 * markFitnessStale after writing to it.
 	 * 
 	 * @return The individual's chromosome
 	 */
@@ -146,6 +167,7 @@ public class Individual {
 	 */
 	public void setGene(int offset, int gene) {
 		this.chromosome[offset] = gene;
+		this.fitnessStale = true;
 	}
 
 	/**
@@ -166,6 +188,24 @@ public class Individual {
 	 */
 	public void setFitness(double fitness) {
 		this.fitness = fitness;
+		this.fitnessStale = false;
+	}
+
+	/**
+	 * Check whether the chromosome has changed since fitness was last stored
+	 * 
+	 * @return True if the individual needs to be evaluated
+	 */
+	public boolean isFitnessStale() {
+		return this.fitnessStale;
+	}
+
+	/**
+	 * Mark the fitness as out of date. setGene does this already; call it
+	 * after changing the chromosome array directly.
+	 */
+	public void markFitnessStale() {
+		this.fitnessStale = true;
 	}
 
 	/**
@@ -54,10 +54,20 @@ public class Module {
     /**
      * Get random professor Id
      * 
+     * @param random
      * @return professorId
      */
-    public int getRandomProfessorId(){
-        int professorId = professorIds[(int) (professorIds.length * Math.random())];
+    public int getRandomProfessorId(RandomSource random){
+        int professorId = professorIds[random.nextInt(professorIds.length)];
         return professorId;
     }
+    
+    /**
+     * Get random professor Id using the default random source
+     * 
+     * @return professorId
+     */
+    public int getRandomProfessorId(){
+        return this.getRandomProfessorId(RandomSource.getDefault());
+    }
 }
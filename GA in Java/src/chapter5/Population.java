@@ -1,12 +1,33 @@
 package chapter5;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Random;
 
 public class Population {
 	private Individual population[];
 	private double populationFitness = -1;
 
+	/**
+	 * Whether the population array is currently ordered by fitness. Once it
+	 * has been sorted, getFittest can simply index into the array until either
+	 * the membership of the population or the fitness values change.
+	 */
+	private boolean ranked = false;
+
+	/**
+	 * Orders individuals from the fittest to the weakest
+	 */
+	private static final Comparator<Individual> FITTEST_FIRST = new Comparator<Individual>() {
+		@Override
+		public int compare(Individual o1, Individual o2) {
+			if (o1.getFitness() > o2.getFitness()) {
+				return -1;
+			} else if (o1.getFitness() < o2.getFitness()) {
+				return 1;
+			}
+			return 0;
+		}
+	};
+
 	/**
 	 * Initializes blank population of individuals
 	 * 
@@ -23,21 +44,32 @@ public class Population {
      * 
      * @param populationSize The size of the population
      * @param timetable The timetable information
+     * @param random The source of random genes
      */
-	public Population(int populationSize, Timetable timetable) {
+	public Population(int populationSize, Timetable timetable, RandomSource random) {
 		// Initial population
 		this.population = new Individual[populationSize];
 
 		// Loop over population size
 		for (int individualCount = 0; individualCount < populationSize; individualCount++) {
 			// Create individual
-			Individual individual = new Individual(timetable);
+			Individual individual = new Individual(timetable, random);
 			// Add individual to population
 			this.population[individualCount] = individual;
 		}
 	}
 
 
+	/**
+     * Initializes population of individuals using the default random source
+     * 
+     * @param populationSize The size of the population
+     * @param timetable The timetable information
+     */
+	public Population(int populationSize, Timetable timetable) {
+		this(populationSize, timetable, RandomSource.getDefault());
+	}
+
 	/**
 	 * Initializes population of individuals
 	 * 
@@ -75,23 +107,27 @@ public class Population {
 	 * @return individual Fittest individual at offset
 	 */
 	public Individual getFittest(int offset) {
-		// Order population by fitness
-		Arrays.sort(this.population, new Comparator<Individual>() {
-			@Override
-			public int compare(Individual o1, Individual o2) {
-				if (o1.getFitness() > o2.getFitness()) {
-					return -1;
-				} else if (o1.getFitness() < o2.getFitness()) {
-					return 1;
-				}
-				return 0;
-			}
-		});
+		// Order population by fitness, unless it's already in order
+		if (this.ranked == false) {
+			Arrays.sort(this.population, FITTEST_FIRST);
+			this.ranked = true;
+		}
 
 		// Return the fittest individual
 		return this.population[offset];
 	}
 
+	/**
+	 * Discard the cached fitness ordering
+	 * 
+	 * evalPopulation takes care of this via setPopulationFitness, but if you
+	 * change an individual's fitness any other way, call this before relying
+	 * on getFittest again.
+	 */
+	public void invalidateRanking() {
+		this.ranked = false;
+	}
+
 	/**
 	 * Set population's fitness
 	 * 
@@ -100,6 +136,8 @@ public class Population {
 	 */
 	public void setPopulationFitness(double fitness) {
 		this.populationFitness = fitness;
+		// Individuals have just been re-evaluated, so the ranking is stale
+		this.ranked = false;
 	}
 
 	/**
@@ -128,6 +166,7 @@ public class Population {
 	 * @return individual
 	 */
 	public Individual setIndividual(int offset, Individual individual) {
+		this.ranked = false;
 		return population[offset] = individual;
 	}
 
@@ -144,17 +183,24 @@ public class Population {
 	/**
 	 * Shuffles the population in-place
 	 * 
-	 * @param void
-	 * @return void
+	 * @param random
+	 *            The source of randomness for the shuffle
 	 */
-	public void shuffle() {
-		Random rnd = new Random();
+	public void shuffle(RandomSource random) {
+		this.ranked = false;
 		for (int i = population.length - 1; i > 0; i--) {
-			int index = rnd.nextInt(i + 1);
+			int index = random.nextInt(i + 1);
 			Individual a = population[index];
 			population[index] = population[i];
 			population[i] = a;
 		}
 	}
 
+	/**
+	 * Shuffles the population in-place using the default random source
+	 */
+	public void shuffle() {
+		this.shuffle(RandomSource.getDefault());
+	}
+
 }
\ No newline at end of file
@@ -203,14 +203,24 @@ public class Timetable {
 	/**
 	 * Get random room
 	 * 
+	 * @param random
 	 * @return room
 	 */
-	public Room getRandomRoom() {
+	public Room getRandomRoom(RandomSource random) {
 		Object[] roomsArray = this.rooms.values().toArray();
-		Room room = (Room) roomsArray[(int) (roomsArray.length * Math.random())];
+		Room room = (Room) roomsArray[random.nextInt(roomsArray.length)];
 		return room;
 	}
 
+	/**
+	 * Get random room using the default random source
+	 * 
+	 * @return room
+	 */
+	public Room getRandomRoom() {
+		return this.getRandomRoom(RandomSource.getDefault());
+	}
+
 	/**
 	 * Get professor from professorId
 	 * 
@@ -274,14 +284,24 @@ public class Timetable {
 	/**
 	 * Get random timeslotId
 	 * 
+	 * @param random
 	 * @return timeslot
 	 */
-	public Timeslot getRandomTimeslot() {
+	public Timeslot getRandomTimeslot(RandomSource random) {
 		Object[] timeslotArray = this.timeslots.values().toArray();
-		Timeslot timeslot = (Timeslot) timeslotArray[(int) (timeslotArray.length * Math.random())];
+		Timeslot timeslot = (Timeslot) timeslotArray[random.nextInt(timeslotArray.length)];
 		return timeslot;
 	}
 
+	/**
+	 * Get random timeslotId using the default random source
+	 * 
+	 * @return timeslot
+	 */
+	public Timeslot getRandomTimeslot() {
+		return this.getRandomTimeslot(RandomSource.getDefault());
+	}
+
 	/**
 	 * Get classes
 	 * 
@@ -36,6 +36,10 @@ public class TimetableGA {
         // Initialize GA
         GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.01, 0.9, 2, 5);
         
+        // Remember the fitness of chromosomes we've already scheduled
+        FitnessCache fitnessCache = new FitnessCache(1000);
+        ga.setFitnessCache(fitnessCache);
+        
         // Initialize population
         Population population = ga.initPopulation(timetable);
         
@@ -49,7 +53,8 @@ public class TimetableGA {
         while (ga.isTerminationConditionMet(generation, 1000) == false
             && ga.isTerminationConditionMet(population) == false) {
             // Print fitness
-            System.out.println("G" + generation + " Best fitness: " + population.getFittest(0).getFitness());
+            System.out.println("G" + generation + " Best fitness: " + population.getFittest(0).getFitness()
+                    + " Skipped evaluations: " + ga.getLastSkippedCount());
 
             // Apply crossover
             population = ga.crossoverPopulation(population);
@@ -68,6 +73,9 @@ public class TimetableGA {
         timetable.createClasses(population.getFittest(0));
         System.out.println();
         System.out.println("Solution found in " + generation + " generations");
+        System.out.println("Evaluations: " + ga.getTotalEvaluatedCount() + " (" + ga.getTotalSkippedCount()
+                + " skipped)");
+        System.out.println("Fitness cache: " + fitnessCache);
         System.out.println("Final solution fitness: " + population.getFittest(0).getFitness());
         System.out.println("Clashes: " + timetable.calcClashes());
 